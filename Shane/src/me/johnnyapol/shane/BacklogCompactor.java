@@ -0,0 +1,269 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collapses the JOIN/PART/QUIT/NICK churn in a stretch of backlog into the net change per nick and channel.
+ *
+ * Every other line (PRIVMSG, NOTICE, TOPIC, KICK, ...) is kept in order. A nick's churn is gathered until the next kept
+ * line that mentions it (as the sender, or as a parameter such as a KICK or MODE target), and its net change goes in just
+ * before that line, so the client always knows who is where when a kept line needs it. Whatever is still gathered at the
+ * end of the stretch goes after the last line.
+ *
+ * Within a channel a JOIN and a later PART cancel out, and a PART and a later JOIN stay as both (the rejoin drops modes).
+ * A string of nick changes becomes one NICK. A QUIT swallows everything before it but the NICK, since the client may know
+ * the nick from a channel we never saw it in, so a NICK or a QUIT is never dropped. Our own nick is never touched.
+ */
+public class BacklogCompactor {
+
+	private static final int JOIN = SymbolTable.intern("JOIN");
+	private static final int PART = SymbolTable.intern("PART");
+	private static final int QUIT = SymbolTable.intern("QUIT");
+	private static final int NICK = SymbolTable.intern("NICK");
+
+	private final String ownNick;
+
+	private static final class Membership {
+		// whether the nick was in the channel before its first line here, and whether it is after its last
+		boolean presentAtStart;
+		boolean present;
+		// parted and came back, so the client needs to see both
+		boolean cycled = false;
+		String partTail = "";
+	}
+
+	private static final class Identity {
+		final String startNick;
+		String nick;
+		// "!user@host", or empty for prefixes without one
+		String host = "";
+		boolean quit = false;
+		String quitTail = "";
+		final Map<String, Membership> channels = new LinkedHashMap<String, Membership>();
+
+		Identity(String nick) {
+			this.startNick = nick;
+			this.nick = nick;
+		}
+
+		Membership channel(String channel, boolean presentAtStart) {
+			String key = channel.toLowerCase();
+			Membership m = this.channels.get(key);
+			if (m == null) {
+				m = new Membership();
+				m.presentAtStart = presentAtStart;
+				m.present = presentAtStart;
+				this.channels.put(key, m);
+			}
+			return m;
+		}
+	}
+
+	// everyone with churn not yet written, in order, by their current nick and by the nick they started with
+	private final Set<Identity> identities = new LinkedHashSet<Identity>();
+	private final Map<String, Identity> byNick = new HashMap<String, Identity>();
+	private final Map<String, Identity> byStartNick = new HashMap<String, Identity>();
+	// the original spelling of each channel, keyed by lower case
+	private final Map<String, String> channelNames = new HashMap<String, String>();
+
+	/**
+	 * @param ownNick Our nick on the network, lines about it are always kept
+	 */
+	public BacklogCompactor(String ownNick) {
+		this.ownNick = ownNick;
+	}
+
+	/**
+	 * Walks every line of the cursor and writes what's left of them to out
+	 */
+	public void compact(MessageStore.Cursor in, MessageStore out) {
+		this.identities.clear();
+		this.byNick.clear();
+		this.byStartNick.clear();
+		this.channelNames.clear();
+
+		while (in.next()) {
+			int command = in.getCommand();
+			if (command != JOIN && command != PART && command != QUIT && command != NICK) {
+				if (!this.identities.isEmpty()) {
+					this.emitMentioned(new IRCMessage(in.toString()), out, in.getSeq());
+				}
+				in.copyTo(out);
+				continue;
+			}
+
+			IRCMessage msg = new IRCMessage(in.toString());
+			String sender = msg.getSender();
+			if (sender == null || sender.equalsIgnoreCase(this.ownNick)) {
+				in.copyTo(out);
+				continue;
+			}
+			this.apply(command, msg, sender, out, in.getSeq());
+		}
+
+		// what's left goes after everything in the stretch, so it takes the last line's sequence number
+		long seq = in.getSeq();
+		for (Identity identity : this.identities) {
+			this.emit(identity, out, seq);
+		}
+	}
+
+	/**
+	 * Writes out the gathered churn of everyone a kept line mentions, ahead of it
+	 */
+	private void emitMentioned(IRCMessage msg, MessageStore out, long seq) {
+		String sender = msg.getSender();
+		if (sender != null) {
+			this.emitNick(sender, out, seq);
+			this.emitStartedAs(sender, out, seq);
+		}
+		// the parameters before the trailing one, which is free text
+		String[] words = msg.getWords();
+		for (int i = 2; i < words.length && !words[i].startsWith(":"); i++) {
+			this.emitNick(words[i], out, seq);
+			this.emitStartedAs(words[i], out, seq);
+		}
+	}
+
+	private void emitNick(String nick, MessageStore out, long seq) {
+		Identity identity = this.byNick.get(nick.toLowerCase());
+		if (identity != null) {
+			this.emitNow(identity, out, seq);
+		}
+	}
+
+	/**
+	 * Writes out whoever started with a nick and has since changed away from it, before someone else shows up with it.
+	 * Otherwise their NICK would come after the newcomer's lines and read as the newcomer's
+	 */
+	private void emitStartedAs(String nick, MessageStore out, long seq) {
+		Identity identity = this.byStartNick.get(nick.toLowerCase());
+		if (identity != null) {
+			this.emitNow(identity, out, seq);
+		}
+	}
+
+	private void emitNow(Identity identity, MessageStore out, long seq) {
+		this.identities.remove(identity);
+		this.byNick.remove(identity.nick.toLowerCase(), identity);
+		this.byStartNick.remove(identity.startNick.toLowerCase(), identity);
+		this.emit(identity, out, seq);
+	}
+
+	private void apply(int command, IRCMessage msg, String sender, MessageStore out, long seq) {
+		Identity identity = this.byNick.get(sender.toLowerCase());
+		if (identity != null && identity.quit) {
+			// the nick came back after quitting, so what it did before is finished
+			this.emitNick(sender, out, seq);
+			identity = null;
+		}
+		if (identity == null) {
+			this.emitStartedAs(sender, out, seq);
+			identity = new Identity(sender);
+			this.identities.add(identity);
+			this.byNick.put(sender.toLowerCase(), identity);
+			this.byStartNick.put(sender.toLowerCase(), identity);
+		}
+		String prefix = msg.getPrefix();
+		if (prefix.indexOf('!') > 0) {
+			identity.host = prefix.substring(prefix.indexOf('!'));
+		}
+
+		String[] words = msg.getWords();
+		String line = msg.getUntaggedLine();
+
+		if (command == JOIN && words.length > 2) {
+			Membership m = identity.channel(this.channelName(words[2]), false);
+			if (m.presentAtStart && !m.present) {
+				m.cycled = true;
+			}
+			m.present = true;
+		} else if (command == PART && words.length > 2) {
+			Membership m = identity.channel(this.channelName(words[2]), true);
+			m.present = false;
+			m.partTail = tail(line, 3);
+		} else if (command == QUIT) {
+			identity.quit = true;
+			identity.quitTail = tail(line, 2);
+		} else if (command == NICK && words.length > 2) {
+			String newNick = (words[2].startsWith(":") ? words[2].substring(1) : words[2]);
+			this.byNick.remove(sender.toLowerCase());
+			if (!newNick.equalsIgnoreCase(sender)) {
+				// whoever had the new nick before is gone, so their lines come first
+				this.emitNick(newNick, out, seq);
+				if (!newNick.equalsIgnoreCase(identity.startNick)) {
+					this.emitStartedAs(newNick, out, seq);
+				}
+			}
+			identity.nick = newNick;
+			this.byNick.put(newNick.toLowerCase(), identity);
+		}
+	}
+
+	private void emit(Identity identity, MessageStore out, long seq) {
+		if (!identity.startNick.equals(identity.nick)) {
+			out.append(":" + identity.startNick + identity.host + " NICK :" + identity.nick, seq);
+		}
+
+		String from = ":" + identity.nick + identity.host;
+		if (identity.quit) {
+			out.append(from + " QUIT" + identity.quitTail, seq);
+			return;
+		}
+
+		for (Map.Entry<String, Membership> channel : identity.channels.entrySet()) {
+			Membership m = channel.getValue();
+			String name = this.channelNames.get(channel.getKey());
+			if (m.presentAtStart && (!m.present || m.cycled)) {
+				out.append(from + " PART " + name + m.partTail, seq);
+			}
+			if (m.present && (!m.presentAtStart || m.cycled)) {
+				out.append(from + " JOIN " + name, seq);
+			}
+		}
+	}
+
+	private String channelName(String word) {
+		String channel = (word.startsWith(":") ? word.substring(1) : word);
+		String key = channel.toLowerCase();
+		String name = this.channelNames.get(key);
+		if (name == null) {
+			this.channelNames.put(key, channel);
+			return channel;
+		}
+		return name;
+	}
+
+	/**
+	 * @return everything from the given word on, with its leading space, or "" if there's nothing there
+	 */
+	private static String tail(String line, int word) {
+		int pos = 0;
+		for (int i = 0; i < word; i++) {
+			pos = line.indexOf(' ', pos);
+			if (pos < 0) {
+				return "";
+			}
+			pos++;
+		}
+		return " " + line.substring(pos);
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-IP protection for the bouncer ports, shared by every IRCServer in the process.
+ * New connections from an address are limited by a token bucket, too many failed logins get the address banned for a while,
+ * and the number of connections that haven't authenticated yet is capped so half-open sockets or password guessing can't eat every thread.
+ * That cap applies per address as well, so one address can't take every slot and lock everyone else out.
+ *
+ * IPv6 addresses are grouped by their /64, since anyone with one address usually has the whole /64. At most MAX_TRACKED_HOSTS
+ * addresses are remembered, the one seen longest ago is forgotten to make room for a new one.
+ */
+public class ConnectionLimiter {
+
+	private static final int MAX_TRACKED_HOSTS = 10000;
+
+	private final int connectionBurst;
+	private final long nanosPerConnection;
+	private final int maxAuthFailures;
+	private final long banNanos;
+	private final int maxUnauthenticated;
+	private final int maxUnauthenticatedPerHost;
+
+	// in least recently seen order, guarded by itself
+	private final Map<String, Host> hosts = new LinkedHashMap<String, Host>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Host> eldest) {
+			return this.size() > MAX_TRACKED_HOSTS;
+		}
+	};
+	private final AtomicInteger unauthenticated = new AtomicInteger();
+
+	private static final class Host {
+		long tokens;
+		long lastRefill;
+		int authFailures;
+		long firstFailure;
+		long bannedUntil;
+		// connections from this address that haven't authenticated yet
+		int unauthenticated;
+	}
+
+	/**
+	 * @param connectionsPerMinute How many connections an address may open per minute, it may also burst up to this many at once
+	 * @param maxAuthFailures How many failed logins an address gets within the ban period before being banned
+	 * @param banMinutes How long a ban lasts
+	 * @param maxUnauthenticated How many connections may be waiting to authenticate at once, across every address
+	 * @param maxUnauthenticatedPerHost How many of those may come from a single address
+	 */
+	public ConnectionLimiter(int connectionsPerMinute, int maxAuthFailures, int banMinutes, int maxUnauthenticated, int maxUnauthenticatedPerHost) {
+		this.connectionBurst = Math.max(1, connectionsPerMinute);
+		this.nanosPerConnection = TimeUnit.MINUTES.toNanos(1) / this.connectionBurst;
+		this.maxAuthFailures = maxAuthFailures;
+		this.banNanos = TimeUnit.MINUTES.toNanos(banMinutes);
+		this.maxUnauthenticated = maxUnauthenticated;
+		this.maxUnauthenticatedPerHost = Math.max(1, maxUnauthenticatedPerHost);
+	}
+
+	private Host host(InetAddress address, long now) {
+		String key = key(address);
+		synchronized (this.hosts) {
+			Host host = this.hosts.get(key);
+			if (host == null) {
+				host = new Host();
+				host.tokens = this.connectionBurst;
+				host.lastRefill = now;
+				this.hosts.put(key, host);
+			}
+			return host;
+		}
+	}
+
+	/**
+	 * @return the address for IPv4, the /64 it's in for IPv6
+	 */
+	static String key(InetAddress address) {
+		if (!(address instanceof Inet6Address)) {
+			return address.getHostAddress();
+		}
+		byte[] bytes = address.getAddress();
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 8; i += 2) {
+			sb.append(Integer.toHexString(((bytes[i] & 0xFF) << 8) | (bytes[i + 1] & 0xFF))).append(':');
+		}
+		return sb.append(":/64").toString();
+	}
+
+	/**
+	 * Called on the accept thread for every new connection. If this returns true the caller owns an unauthenticated slot
+	 * and must give it back with {@link #releaseUnauthenticated(InetAddress)}
+	 * @return false if the connection should be closed straight away
+	 */
+	public boolean tryAccept(InetAddress address) {
+		long now = System.nanoTime();
+		Host host = this.host(address, now);
+
+		synchronized (host) {
+			if (host.bannedUntil != 0 && now - host.bannedUntil < 0) {
+				return false;
+			}
+
+			long refill = (now - host.lastRefill) / this.nanosPerConnection;
+			if (refill > 0) {
+				host.tokens = Math.min(this.connectionBurst, host.tokens + refill);
+				host.lastRefill += refill * this.nanosPerConnection;
+			}
+			if (host.tokens == 0 || host.unauthenticated >= this.maxUnauthenticatedPerHost) {
+				return false;
+			}
+
+			if (this.unauthenticated.incrementAndGet() > this.maxUnauthenticated) {
+				this.unauthenticated.decrementAndGet();
+				return false;
+			}
+			host.tokens--;
+			host.unauthenticated++;
+		}
+		return true;
+	}
+
+	/**
+	 * Gives back the slot taken by {@link #tryAccept(InetAddress)}, once the client authenticates or goes away
+	 */
+	public void releaseUnauthenticated(InetAddress address) {
+		this.unauthenticated.decrementAndGet();
+
+		Host host;
+		synchronized (this.hosts) {
+			host = this.hosts.get(key(address));
+		}
+		if (host != null) {
+			synchronized (host) {
+				// the address may have been forgotten and seen again since, don't let that take it below zero
+				host.unauthenticated = Math.max(0, host.unauthenticated - 1);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the address is now banned
+	 */
+	public boolean recordAuthFailure(InetAddress address) {
+		long now = System.nanoTime();
+		Host host = this.host(address, now);
+
+		synchronized (host) {
+			if (host.authFailures == 0 || now - host.firstFailure > this.banNanos) {
+				host.authFailures = 0;
+				host.firstFailure = now;
+			}
+
+			if (++host.authFailures >= this.maxAuthFailures) {
+				host.bannedUntil = now + this.banNanos;
+				host.authFailures = 0;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	public void recordAuthSuccess(InetAddress address) {
+		Host host;
+		synchronized (this.hosts) {
+			host = this.hosts.get(key(address));
+		}
+		if (host != null) {
+			synchronized (host) {
+				host.authFailures = 0;
+			}
+		}
+	}
+
+	public int getUnauthenticated() {
+		return this.unauthenticated.get();
+	}
+
+	/**
+	 * @return the number of addresses currently banned
+	 */
+	public int getBanned() {
+		long now = System.nanoTime();
+		int banned = 0;
+		synchronized (this.hosts) {
+			for (Host host : this.hosts.values()) {
+				synchronized (host) {
+					if (host.bannedUntil != 0 && now - host.bannedUntil < 0) {
+						banned++;
+					}
+				}
+			}
+		}
+		return banned;
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connects to a host with several addresses the way RFC 8305 ("Happy Eyeballs v2") describes: addresses are interleaved
+ * by family starting with IPv6, a new attempt is started every 250ms (or as soon as the previous one fails) and the first
+ * socket to connect wins. A dead IPv6 route or a single black-holed A record then costs 250ms instead of a full OS connect timeout.
+ *
+ * We only get both families from one InetAddress.getAllByName() call, so there is no separate resolution delay step.
+ */
+public final class HappyEyeballs {
+
+	public static final long ATTEMPT_DELAY_MS = 250;
+
+	private static final AtomicLong ipv6Wins = new AtomicLong();
+	private static final AtomicLong ipv4Wins = new AtomicLong();
+	private static final AtomicLong failedAttempts = new AtomicLong();
+
+	private HappyEyeballs() {
+	}
+
+	private static class Attempt implements Runnable {
+		final InetSocketAddress address;
+		// a channel's socket, so the winner can be handed to the reactor
+		final Socket socket;
+		final BlockingQueue<Attempt> done;
+		final int timeout;
+		volatile IOException error;
+
+		Attempt(InetSocketAddress address, int timeout, BlockingQueue<Attempt> done) throws IOException {
+			this.address = address;
+			this.socket = SocketChannel.open().socket();
+			this.timeout = timeout;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			try {
+				this.socket.connect(this.address, this.timeout);
+			} catch (IOException e) {
+				this.error = e;
+			}
+			this.done.add(this);
+		}
+
+		void cancel() {
+			try {
+				// also aborts a connect() that is still in progress
+				this.socket.close();
+			} catch (IOException e) {
+				// ignored
+			}
+		}
+	}
+
+	/**
+	 * Races connections to the given addresses, see the class description
+	 * @param addresses Every address of the host, in resolver order
+	 * @param port The port to connect to
+	 * @param timeoutMs How long to keep trying overall
+	 * @return the connected socket of the winning attempt, backed by a SocketChannel. Every other attempt is closed
+	 * @throws IOException the last attempt's error if all of them fail, or a SocketTimeoutException
+	 */
+	public static Socket connect(InetAddress[] addresses, int port, int timeoutMs) throws IOException {
+		List<InetAddress> ordered = interleave(addresses);
+		if (ordered.isEmpty()) {
+			throw new IOException("No addresses to connect to");
+		}
+
+		BlockingQueue<Attempt> done = new LinkedBlockingQueue<Attempt>();
+		List<Attempt> started = new ArrayList<Attempt>();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		int running = 0;
+		IOException lastError = null;
+
+		try {
+			while (true) {
+				if (started.size() < ordered.size()) {
+					Attempt attempt = new Attempt(new InetSocketAddress(ordered.get(started.size()), port), timeoutMs, done);
+					started.add(attempt);
+					running++;
+					SharedResources.execute(attempt);
+				}
+
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					throw new SocketTimeoutException("Timed out connecting to " + ordered);
+				}
+
+				// give the attempts in flight a head start before opening the next one
+				long wait = (started.size() < ordered.size() ? Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY_MS)) : remaining);
+				Attempt finished = done.poll(wait, TimeUnit.NANOSECONDS);
+
+				while (finished != null) {
+					running--;
+					if (finished.error == null) {
+						started.remove(finished);
+						if (finished.address.getAddress() instanceof Inet6Address) {
+							ipv6Wins.incrementAndGet();
+						} else {
+							ipv4Wins.incrementAndGet();
+						}
+						return finished.socket;
+					}
+
+					failedAttempts.incrementAndGet();
+					lastError = finished.error;
+					finished = done.poll();
+				}
+
+				if (running == 0 && started.size() == ordered.size()) {
+					throw lastError;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while connecting", e);
+		} finally {
+			// losers (and everything, if we're bailing out) get closed
+			for (Attempt attempt : started) {
+				attempt.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Orders addresses per RFC 8305 section 4: alternate families, IPv6 first, otherwise keeping the resolver's order
+	 */
+	static List<InetAddress> interleave(InetAddress[] addresses) {
+		List<InetAddress> v6 = new ArrayList<InetAddress>();
+		List<InetAddress> v4 = new ArrayList<InetAddress>();
+
+		for (InetAddress address : addresses) {
+			(address instanceof Inet6Address ? v6 : v4).add(address);
+		}
+
+		List<InetAddress> ordered = new ArrayList<InetAddress>(addresses.length);
+		for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+			if (i < v6.size()) {
+				ordered.add(v6.get(i));
+			}
+			if (i < v4.size()) {
+				ordered.add(v4.get(i));
+			}
+		}
+		return ordered;
+	}
+
+	/**
+	 * @return a one line summary of which address family has been winning races
+	 */
+	public static String getStats() {
+		return "ipv6 wins: " + ipv6Wins.get() + ", ipv4 wins: " + ipv4Wins.get() + ", failed attempts: " + failedAttempts.get();
+	}
+}
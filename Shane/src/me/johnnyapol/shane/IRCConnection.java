@@ -14,213 +14,831 @@
  */
 package me.johnnyapol.shane;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 
 import me.johnnyapol.shane.IRCServer.IRCClient;
 
 public class IRCConnection implements Runnable {
 
-	private Socket socket = null;
-	private BufferedReader reader = null;
-	private BufferedWriter writer = null;
+	private static final long RECONNECT_DELAY_SECONDS = 30;
+	private static final long RESOLVE_TIMEOUT_SECONDS = 10;
+	private static final int CONNECT_TIMEOUT_MS = 20000;
+	// lines handled per run before the reader thread goes to another connection
+	private static final int MAX_LINES_PER_RUN = 256;
+	// how much may wait for the network to read it before we give up on the connection
+	private static final int MAX_UNSENT_BYTES = 1024 * 1024;
+	
+	private volatile Transport transport = null;
+	// the address that won the last connection race, for stats
+	private volatile InetSocketAddress connectedAddress = null;
+	// only touched by the strand
+	private LineReader reader = null;
+	// everything that touches the network connection or the backlogs runs here, one run at a time on the reader pool
+	private final Strand strand = new Strand() {
+		@Override
+		protected void work() {
+			IRCConnection.this.work();
+		}
+	};
+	private final Reactor.Listener wakeUp = new Reactor.Listener() {
+		@Override
+		public void ready(int ops) {
+			IRCConnection.this.strand.schedule();
+		}
+	};
 	
 	private String nickName = null;
 	
 	private IRCServer server = null;
+	private UserConfig user = null;
 	
 	private final Logger log = Logger.getLogger("Shane");
 	
 	// takes a nick and holds a msg queue for when that client reconnects
-	private Map<String, ArrayList<String>> missedMessages = new ConcurrentHashMap<String, ArrayList<String>>();
+	private Map<String, MessageStore> missedMessages = new ConcurrentHashMap<String, MessageStore>();
 	// messages excluding PRIVMSG and PINGs, for some reason clients need these to function properly. I'm probably messing something up too
-	private List<String> serverMsgs = new CopyOnWriteArrayList<String>();
+	private MessageStore serverMsgs = new MessageStore();
+	
+	// channels we're actually in, so reconnects (or a standby taking over) also rejoin channels clients joined later on
+	private final Set<String> joinedChannels = ConcurrentHashMap.newKeySet();
+	// held while changing profile backlogs or joinedChannels when a standby is following us, so it sees changes in order
+	private final Object backlogLock = new Object();
+	private volatile ReplicationServer replication = null;
+	
+	// from reading a line to handing it to the clients, and from reading it to it being written to each client
+	private final LatencyHistogram processingLatency = new LatencyHistogram();
+	private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+	// what every line goes through before it reaches clients and backlogs
+	private final MessagePipeline pipeline;
+	// profiles whose backlog is compacted (lower case, "*" for all), and the compactor, only used on the strand
+	private final Set<String> compactProfiles = new HashSet<String>();
+	private final BacklogCompactor compactor;
 	
 	private String[] channels;
 	private String networkName;
+	// what we prefix our log lines with, just the network name for the default user
+	private String id;
 
 	private boolean useSSL = false;
 	private String ipAddress;
 	private int port;
-	private String afkMsg = "";
 	
-	private boolean isRunning = true;
+	private volatile boolean isRunning = true;
+	// set when we hang up on purpose, so the read failing isn't logged as an error
+	private volatile boolean dropping = false;
+	
+	// every line read gets the next sequence number, a client attaching has its replay end at the current one, see onClientConnect()
+	private long seq = 0;
+	// work other threads hand to the strand, run in order before the next line
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	// profiles with a replay in flight, and the clients waiting for it to end before they attach, only used on the strand
+	private final Set<String> replaying = new HashSet<String>();
+	private final Map<String, Queue<IRCClient>> waitingToAttach = new HashMap<String, Queue<IRCClient>>();
 	
-	public IRCConnection(String networkName, String ipAddress, int port, IRCServer server, String nick, String[] channels, boolean useSSL, String afk) throws IOException {
+	public IRCConnection(UserConfig user, String networkName, ServerConfig cfg, IRCServer server) {
+		this.user = user;
 		this.networkName = networkName;
-		this.ipAddress = ipAddress;
-		this.port = port;
+		this.ipAddress = cfg.getIpAddress();
+		this.port = cfg.getPort();
 		this.server = server;
-		this.nickName = nick;
-		this.channels = channels;
-		this.useSSL = useSSL;
-		this.afkMsg = afk;
+		this.nickName = cfg.getNickname();
+		this.channels = cfg.getChannels();
+		this.useSSL = cfg.getUseSSL();
+		this.pipeline = MessagePipeline.standard(cfg);
+		this.compactor = new BacklogCompactor(this.nickName);
+		for (String profile : cfg.getCompactProfiles()) {
+			this.compactProfiles.add(profile.trim().toLowerCase());
+		}
+		this.id = (user.getName().equals(UserConfig.DEFAULT_USER) ? networkName : user.getName() + "/" + networkName);
 		
-		this.socket = (useSSL ? (((SSLSocketFactory)SSLSocketFactory.getDefault()).createSocket(ipAddress, port)) : new Socket(ipAddress, port));
+		this.processingLatency.register("Network", this.id, "processing");
+		this.deliveryLatency.register("Network", this.id, "delivery");
+	}
+	
+	/**
+	 * Connects to the network on the worker pool, after which it's read on the reader pool. A failed connection is retried on the shared scheduler
+	 */
+	public void start() {
+		SharedResources.execute(this);
+	}
+
+	private InetAddress[] resolve() throws IOException {
 		try {
-			init();
-		} catch(Throwable t) {
-			t.printStackTrace();
+			return Resolver.resolve(this.ipAddress).get(RESOLVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to resolve " + this.ipAddress, e.getCause());
+		} catch (TimeoutException e) {
+			throw new UnknownHostException("Timed out resolving " + this.ipAddress);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while resolving " + this.ipAddress, e);
 		}
 	}
-
-	private void init() throws IOException {
-		log.info("[" + this.networkName + "] Connecting to: " + socket.getRemoteSocketAddress().toString());
+	
+	private void connect() throws IOException {
+		InetAddress[] addresses = this.resolve();
+		long began = System.nanoTime();
+		
+		Socket plain;
+		try {
+			plain = HappyEyeballs.connect(addresses, this.port, CONNECT_TIMEOUT_MS);
+		} catch (IOException e) {
+			// every address failed, don't keep handing out the same ones
+			Resolver.invalidate(this.ipAddress);
+			throw e;
+		}
+		
+		Transport t;
+		try {
+			SSLEngine engine = null;
+			if (useSSL) {
+				engine = SSLContext.getDefault().createSSLEngine(this.ipAddress, this.port);
+				engine.setUseClientMode(true);
+				engine.beginHandshake();
+			}
+			t = new Transport(plain.getChannel(), engine, this.wakeUp);
+		} catch (IOException e) {
+			plain.close();
+			throw e;
+		} catch (NoSuchAlgorithmException e) {
+			plain.close();
+			throw new IOException("No SSL support", e);
+		}
+		this.connectedAddress = (InetSocketAddress) plain.getRemoteSocketAddress();
+		
+		log.info("[" + this.id + "] Connected to " + this.ipAddress + " via " + this.connectedAddress + " (" + (this.connectedAddress.getAddress() instanceof Inet6Address ? "IPv6" : "IPv4")
+				+ ", " + addresses.length + " candidates, " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - began) + "ms)");
 		if (useSSL)
-			log.info("[" + this.networkName + "] Using SSL for connection");
+			log.info("[" + this.id + "] Using SSL for connection");
 		
-		this.reader = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-		this.writer = new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream()));
+		this.reader = new LineReader();
+		this.transport = t;
 		
 		this.sendMesssage("NICK " + this.nickName);
 		this.sendMesssage("USER shanebouncer 8 *  : " + this.nickName);
 		
+		Set<String> toJoin = new LinkedHashSet<String>();
 		for (String channel : this.channels) {
+			toJoin.add(channel);
+		}
+		toJoin.addAll(this.joinedChannels);
+		
+		for (String channel : toJoin) {
 			this.sendMesssage("JOIN " + channel);
 		}
-		this.server.setIRCConnection(this);
+	}
+	
+	private void scheduleReconnect() {
+		SharedResources.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (IRCConnection.this.isRunning) {
+					log.info("[" + IRCConnection.this.id + "] Attempting to reconnect...");
+					IRCConnection.this.start();
+				}
+			}
+		}, RECONNECT_DELAY_SECONDS, TimeUnit.SECONDS);
 	}
 	
 	@Override
 	public void run() {
-		while (this.isRunning) {
-			try {
-				Thread.sleep(50);
-				String msg = null;
-				
-				while ((msg = this.reader.readLine()) != null) {
-					String[] split = msg.split(" ");
-					if (msg.contains("PING")) {
-						int dataIndex = 1;
-						
-						for (int i = 0; i < split.length; i++) {
-							if (split[i].equalsIgnoreCase("PING")) {
-								dataIndex = i;
-								break;
-							}
-						}
-						this.sendMesssage("PONG " + split[dataIndex + 1]);
-						continue;
-					}
-					
-					// block WHO responses since they lag us really bad
-					if (!msg.contains("PRIVMSG") && !(msg.startsWith(":")  && split[1].equals("352"))) {
-						this.serverMsgs.add(msg);
-					}
-					
-					// Afk functionality
-					if (msg.contains("PRIVMSG") && msg.contains(this.nickName) && this.server.getConnectedClients().size() == 0) {
-						// We're afk, let them know
-						String user = msg.split("!")[0].substring(1);
-						
-						this.sendMesssage("PRIVMSG " + user + " :" + this.afkMsg);
-					}
-					
-					log.info("[" + this.networkName + "] [msg] " + msg);
-					
-					this.server.distributeMessage(msg);
-					
-					List<String> nicksOnline = new ArrayList<String>();
-					
-					for (IRCClient c : this.server.getConnectedClients()) {
-						nicksOnline.add(c.getNick());
-					}
-					
-					Iterator<String> clients = this.missedMessages.keySet().iterator();
-					while (clients.hasNext()) {
-						String nick = clients.next();
-						if (!nicksOnline.contains(nick)) {
-							// store msg for later
-							// block WHO responses, they lag up the place
-							if ((msg.startsWith(":")  && split[1].equals("352"))) {
-								continue;
-							}
-							this.missedMessages.get(nick).add(msg);
-						}
+		try {
+			this.connect();
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "[" + this.id + "] Failed to connect to " + ipAddress + ", trying again in " + RECONNECT_DELAY_SECONDS + " seconds..", e);
+			this.closeSocket();
+			this.transport = null;
+			this.scheduleReconnect();
+			return;
+		}
+		this.strand.schedule();
+	}
+	
+	/**
+	 * One run of the strand: the tasks other threads left us, then whatever the network sent, with the tasks again before every line
+	 */
+	private void work() {
+		this.runTasks();
+		
+		Transport t = this.transport;
+		if (t == null) {
+			return;
+		}
+		
+		try {
+			if (t.needsFlush()) {
+				t.tryFlush();
+			}
+			long readyAt = t.takeReadyAt();
+			for (int n = 0; n < MAX_LINES_PER_RUN; n++) {
+				String msg = this.reader.pollLine(t);
+				if (msg == null) {
+					if (this.reader.isAtEnd()) {
+						this.connectionLost(t, null);
+					} else {
+						t.watchRead();
 					}
+					return;
 				}
-			} catch (Throwable t) {
-				log.log(Level.SEVERE, "Throwable while processing message", t);
 				
-				if (t instanceof IOException) {
-					// we've probably lost connection
-					while (true) {
-						log.log(Level.WARNING, "[" + this.networkName + "] Lost connection to " + this.socket.getRemoteSocketAddress().toString());
-						log.info("[" + this.networkName + "] Attempting to reconnect...");
-						
-						this.serverMsgs.clear();
-						
-						try {
-							this.socket = (useSSL ? (((SSLSocketFactory)SSLSocketFactory.getDefault()).createSocket(ipAddress, port)) : new Socket(ipAddress, port));
-							while (!this.socket.isConnected()) {
-								Thread.sleep(50);
-							}
-							
-							init();
-							return; // kill off this thread
-						} catch (Exception e) {
-							log.log(Level.SEVERE, "[" + this.networkName + "] Failed to connect to " + ipAddress + ", sleeping for 30 seconds and trying again..");
-							try {
-								Thread.sleep(1000 * 30);
-							} catch (InterruptedException e1) {
-								// ignored
-							}
-						}
-					}
+				long receivedAt = (readyAt != 0 ? readyAt : System.nanoTime());
+				this.runTasks();
+				try {
+					this.handleMessage(msg, receivedAt, ++this.seq);
+				} catch (RuntimeException e) {
+					log.log(Level.SEVERE, "Throwable while processing message", e);
 				}
 			}
+			// let the other connections have a turn
+			this.strand.schedule();
+		} catch (IOException e) {
+			this.connectionLost(t, e);
 		}
 	}
 	
-	public void sendMesssage(String msg) throws IOException {
-		this.writer.write(msg + "\r\n");
-		this.writer.flush();
+	private void connectionLost(Transport t, IOException e) {
+		if (e != null && this.isRunning && !this.dropping) {
+			log.log(Level.SEVERE, "Throwable while processing message", e);
+		}
+		this.dropping = false;
+		this.transport = null;
+		t.close();
+		
+		if (this.isRunning) {
+			// we've lost connection
+			log.log(Level.WARNING, "[" + this.id + "] Lost connection to " + this.connectedAddress);
+			this.serverMsgs.clear();
+			this.scheduleReconnect();
+		}
+	}
+	
+	private void handleMessage(String line, long receivedAt, long seq) throws IOException {
+		IRCMessage msg = new IRCMessage(line);
+		this.pipeline.process(this, msg);
+		
+		if (msg.isDropped()) {
+			return;
+		}
+		
+		// Clients only attach between lines, see onClientConnect(), so each one either gets this line queued or finds it in the backlog
+		List<IRCClient> connectedClients = this.server.getConnectedClients(this);
+		// sized by toArray itself, a client leaving between size() and toArray() would leave a null at the end
+		IRCClient[] clients = connectedClients.toArray(new IRCClient[0]);
+		
+		log.info("[" + this.id + "] [msg] " + msg);
+		
+		this.processingLatency.record(System.nanoTime() - receivedAt);
+		List<IRCClient> lost = Collections.emptyList();
+		if (msg.shouldDistribute()) {
+			lost = this.server.distributeMessage(this, clients, msg.getLine(), receivedAt, seq);
+		}
+		
+		if (msg.shouldReplay()) {
+			this.serverMsgs.append(msg.getLine(), seq);
+		}
+		
+		if (!msg.shouldBuffer()) {
+			return;
+		}
+		
+		List<String> nicksOnline = new ArrayList<String>();
+		
+		for (IRCClient c : clients) {
+			// clients we just lost didn't get it. Ones that detached since got it queued, see onClientDisconnect()
+			if (!lost.contains(c)) {
+				nicksOnline.add(c.getNick());
+			}
+		}
+		
+		Iterator<String> profiles = this.missedMessages.keySet().iterator();
+		while (profiles.hasNext()) {
+			String nick = profiles.next();
+			if (!nicksOnline.contains(nick)) {
+				// store msg for later
+				this.bufferMissed(nick, this.missedMessages.get(nick), msg.getLine(), seq);
+			}
+		}
+	}
+	
+	/**
+	 * Keeps joinedChannels up to date from our own JOIN/PART/KICK lines
+	 */
+	void trackChannels(String[] split) {
+		if (split.length < 3 || !split[0].startsWith(":")) {
+			return;
+		}
+		
+		String from = split[0].substring(1);
+		if (from.contains("!")) {
+			from = from.substring(0, from.indexOf('!'));
+		}
+		String channel = (split[2].startsWith(":") ? split[2].substring(1) : split[2]);
+		
+		if (split[1].equals("JOIN") && from.equalsIgnoreCase(this.nickName)) {
+			this.changeChannel(channel, true);
+		} else if (split[1].equals("PART") && from.equalsIgnoreCase(this.nickName)) {
+			this.changeChannel(channel, false);
+		} else if (split[1].equals("KICK") && split.length > 3 && split[3].equalsIgnoreCase(this.nickName)) {
+			this.changeChannel(channel, false);
+		}
+	}
+	
+	// Everything that changes state a standby replicates goes through the methods below
+	
+	private void changeChannel(String channel, boolean joined) {
+		ReplicationServer r = this.replication;
+		if (r == null) {
+			if (joined) {
+				this.joinedChannels.add(channel);
+			} else {
+				this.joinedChannels.remove(channel);
+			}
+			return;
+		}
+		
+		synchronized (this.backlogLock) {
+			if (joined ? this.joinedChannels.add(channel) : this.joinedChannels.remove(channel)) {
+				r.publish(this, (joined ? "J " : "L ") + this.getReplicationKey() + " " + channel);
+			}
+		}
+	}
+	
+	private void bufferMissed(String nick, MessageStore store, String msg, long seq) {
+		ReplicationServer r = this.replication;
+		if (r == null) {
+			store.append(msg, seq);
+			this.compactIfNeeded(nick, store);
+			return;
+		}
+		
+		synchronized (this.backlogLock) {
+			store.append(msg, seq);
+			r.publish(this, "M " + this.getReplicationKey() + " " + nick + " " + seq + " " + msg);
+			// the standby keeps the uncompacted lines, it compacts them itself once it takes over
+			this.compactIfNeeded(nick, store);
+		}
+	}
+	
+	private void compactIfNeeded(String nick, MessageStore store) {
+		if (this.compactProfiles.isEmpty() || !store.needsCompaction()) {
+			return;
+		}
+		if (!this.compactProfiles.contains("*") && !this.compactProfiles.contains(nick.toLowerCase())) {
+			return;
+		}
+		
+		long began = System.nanoTime();
+		int removed = store.compact(this.compactor);
+		log.fine("[" + this.id + "] Compacted " + nick + "'s backlog, removed " + removed + " lines in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - began) + "ms");
+	}
+	
+	private MessageStore newProfile(String nick) {
+		MessageStore store = new MessageStore();
+		ReplicationServer r = this.replication;
+		if (r == null) {
+			this.missedMessages.put(nick, store);
+			return store;
+		}
+		
+		synchronized (this.backlogLock) {
+			this.missedMessages.put(nick, store);
+			r.publish(this, "P " + this.getReplicationKey() + " " + nick);
+		}
+		return store;
+	}
+	
+	/**
+	 * Drops the lines of a profile that have been replayed, on the strand since that's the only one that may change a store
+	 */
+	private void trimProfile(final String nick, final MessageStore store, final long replayedBelow) {
+		store.discardBefore(replayedBelow);
+		this.tasks.add(new Runnable() {
+			@Override
+			public void run() {
+				ReplicationServer r = IRCConnection.this.replication;
+				if (r == null) {
+					store.trim();
+					return;
+				}
+				
+				synchronized (IRCConnection.this.backlogLock) {
+					store.trim();
+					r.publish(IRCConnection.this, "C " + IRCConnection.this.getReplicationKey() + " " + nick + " " + replayedBelow);
+				}
+			}
+		});
 	}
 	
-	public void onClientConnect(IRCClient client) {
-		for (String msg : this.serverMsgs) {
+	private void runTasks() {
+		Runnable task;
+		while ((task = this.tasks.poll()) != null) {
 			try {
-				client.sendMessage(msg);
-			} catch (IOException e) {
-				// TODO: autogenerated
-				e.printStackTrace();
+				task.run();
+			} catch (RuntimeException e) {
+				log.log(Level.SEVERE, "[" + this.id + "] Throwable while running a task", e);
 			}
 		}
+	}
+	
+	/**
+	 * Copies our joined channels and opens a cursor on each profile backlog for a standby that just connected, then
+	 * subscribes it to our changes. Nothing is written here, so a slow standby can't hold the backlog lock
+	 * @param cursors Filled in the same order as profiles, the caller closes them
+	 */
+	void snapshotTo(ReplicationServer.Standby standby, List<String> channels, List<String> profiles, List<MessageStore.Cursor> cursors) {
+		synchronized (this.backlogLock) {
+			channels.addAll(this.joinedChannels);
+			for (Map.Entry<String, MessageStore> profile : this.missedMessages.entrySet()) {
+				profiles.add(profile.getKey());
+				cursors.add(profile.getValue().cursor());
+			}
+			standby.subscribe(this);
+		}
+	}
+	
+	/**
+	 * Seeds this connection with state replicated from a primary that went away. Call before {@link #start()}
+	 */
+	public void restore(Map<String, MessageStore> missed, Set<String> channels) {
+		this.missedMessages.putAll(missed);
+		// carry on numbering after the primary, so new lines sort after the ones it buffered
+		for (MessageStore store : missed.values()) {
+			this.seq = Math.max(this.seq, store.getLastSeq());
+		}
+		this.joinedChannels.addAll(channels);
+		log.info("[" + this.id + "] Restored " + missed.size() + " profile backlogs and " + channels.size() + " channels from the primary");
+	}
+	
+	/**
+	 * Starts streaming backlog changes to a standby. Call before {@link #start()}
+	 */
+	public void setReplication(ReplicationServer replication) {
+		this.replication = replication;
+	}
+	
+	/**
+	 * @return the id used for this connection in replication events, which are space separated
+	 */
+	public String getReplicationKey() {
+		return this.id.replace(' ', '_');
+	}
+	
+	public void sendMesssage(String msg) throws IOException {
+		Transport t = this.transport;
+		if (t == null) {
+			throw new IOException("Not connected to " + this.networkName);
+		}
+		t.append((msg + "\r\n").getBytes(StandardCharsets.UTF_8));
+		if (!t.tryFlush() && t.buffered() > MAX_UNSENT_BYTES) {
+			this.dropUpstream(this.networkName + " isn't reading what we send, " + (t.buffered() / 1024) + "KB are waiting");
+			throw new IOException("Dropped " + this.networkName + ", it stopped reading");
+		}
+	}
+	
+	/**
+	 * Attaches a client: replays the backlogs up to some line, then lets the client have every line after it.
+	 *
+	 * The client is added to the connected list by a task on the strand, so between two lines: every line before that point
+	 * is in the backlogs (or was handed back by a client dropped before, those tasks ran first) and every line after it is
+	 * queued for the client. The replay of what's before runs on a worker, so the strand never waits for the client.
+	 *
+	 * Only one client of a profile is replayed to at a time. What a replay got through is only known once it ends, so a
+	 * second client attaching meanwhile waits for that before it's added, instead of being sent the same lines again.
+	 */
+	public void onClientConnect(final IRCClient client) {
+		this.tasks.add(new Runnable() {
+			@Override
+			public void run() {
+				IRCConnection.this.attach(client);
+			}
+		});
+		this.strand.schedule();
+	}
+	
+	private void attach(final IRCClient client) {
+		final String nick = client.getNick();
+		if (this.replaying.contains(nick)) {
+			Queue<IRCClient> waiting = this.waitingToAttach.get(nick);
+			if (waiting == null) {
+				waiting = new ArrayDeque<IRCClient>();
+				this.waitingToAttach.put(nick, waiting);
+			}
+			waiting.add(client);
+			log.info("[" + this.id + "] Client #" + client.getID() + " waits for " + nick + "'s replay to another client to end");
+			return;
+		}
 		
-		ArrayList<String> msgs = this.missedMessages.get(client.getNick());
+		List<IRCClient> connectedClients = this.server.getConnectedClients(this);
+		connectedClients.add(client);
+		if (client.isDropped()) {
+			// it went away before we got to it, and onClientDropped() may have looked for it in the list before we added it
+			connectedClients.remove(client);
+			return;
+		}
+		
+		MessageStore store = this.missedMessages.get(nick);
+		if (store == null) {
+			store = this.newProfile(nick);
+		}
+		
+		final MessageStore msgs = store;
+		final long cutoff = this.seq + 1;
+		client.setCutoff(cutoff);
+		final MessageStore.Cursor server = this.serverMsgs.cursor();
+		final MessageStore.Cursor missed = msgs.cursor();
+		this.replaying.add(nick);
+		SharedResources.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					IRCConnection.this.replay(client, msgs, server, missed, cutoff);
+				} finally {
+					// behind the trim and hand-back the replay queued, so the next client sees the backlog they leave
+					IRCConnection.this.tasks.add(new Runnable() {
+						@Override
+						public void run() {
+							IRCConnection.this.replayEnded(nick);
+						}
+					});
+					IRCConnection.this.strand.schedule();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Attaches the clients that waited for a profile's replay, until one of them starts a replay of its own
+	 */
+	private void replayEnded(String nick) {
+		this.replaying.remove(nick);
+		Queue<IRCClient> waiting = this.waitingToAttach.remove(nick);
+		if (waiting == null) {
+			return;
+		}
+		while (!waiting.isEmpty() && !this.replaying.contains(nick)) {
+			this.attach(waiting.poll());
+		}
+		if (!waiting.isEmpty()) {
+			this.waitingToAttach.put(nick, waiting);
+		}
+	}
+	
+	/**
+	 * Sends a client what it missed, on a worker
+	 * @param cutoff The first line that was queued for the client rather than kept for it
+	 */
+	private void replay(IRCClient client, MessageStore msgs, MessageStore.Cursor server, MessageStore.Cursor missed, long cutoff) {
+		long compactedLines = msgs.getCompactedLines(), compactedBytes = msgs.getCompactedBytes();
+		long began = System.nanoTime();
+		// walks behind the replay if it fails, to find the lines the socket took
+		MessageStore.Cursor sent = missed.copy();
+		long sentBefore = -1;
+		boolean replayed = false;
+		try {
+			replay(client, server, cutoff);
+			client.flush();
+			sentBefore = client.getBytesSent();
+			replay(client, missed, cutoff);
+			client.flush();
+			replayed = true;
+			client.goLive();
+			
+			if (missed.getLines() > 0) {
+				long took = System.nanoTime() - began;
+				if (compactedLines > 0) {
+					// replay time is roughly proportional to bytes, so estimate what the uncompacted backlog would have taken
+					long bytes = Math.max(1, missed.getBytes());
+					log.info("[" + this.id + "] Replayed " + missed.getLines() + " lines (" + (bytes / 1024) + "KB) to " + client.getNick() + " in " + TimeUnit.NANOSECONDS.toMillis(took)
+							+ "ms, without compaction it would have been " + (missed.getLines() + compactedLines) + " lines (" + ((bytes + compactedBytes) / 1024) + "KB), ~"
+							+ TimeUnit.NANOSECONDS.toMillis(took * (bytes + compactedBytes) / bytes) + "ms");
+				} else {
+					log.info("[" + this.id + "] Replayed " + missed.getLines() + " lines (" + (missed.getBytes() / 1024) + "KB) to " + client.getNick() + " in " + TimeUnit.NANOSECONDS.toMillis(took) + "ms");
+				}
+			}
+			// cleanup
+			this.trimProfile(client.getNick(), msgs, cutoff);
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "[" + this.id + "] Lost connection to client " + client.getConnection().getRemoteSocketAddress() + ", an IOException occurred while writing", e);
+			long replayedBelow = (replayed ? cutoff : 0);
+			if (!replayed && sentBefore >= 0) {
+				// the lines the socket took before the write failed are the client's, the rest stay in the backlog
+				replayedBelow = sentBelow(sent, client.getBytesSent() - sentBefore);
+			}
+			if (replayedBelow > 0) {
+				this.trimProfile(client.getNick(), msgs, replayedBelow);
+			}
+			this.onClientDropped(client);
+		} finally {
+			server.close();
+			missed.close();
+			sent.close();
+		}
+	}
+	
+	/**
+	 * Writes a store's lines from below the client's cutoff, straight from the store's bytes
+	 */
+	private static void replay(IRCClient client, MessageStore.Cursor cursor, long cutoff) throws IOException {
+		while (cursor.next() && cursor.getSeq() < cutoff) {
+			client.sendStored(cursor);
+		}
+	}
+	
+	/**
+	 * @param bytes How much of the replay the socket took
+	 * @return the sequence number of the first line that didn't get through whole, 0 if none did
+	 */
+	private static long sentBelow(MessageStore.Cursor cursor, long bytes) {
+		long below = 0;
+		while (cursor.next() && cursor.getBytes() <= bytes) {
+			below = cursor.getSeq() + 1;
+		}
+		return below;
+	}
+	
+	/**
+	 * Sends everything the client queued up before it detached, so a QUIT doesn't lose lines that were already routed to it.
+	 * It leaves the connected list between two lines, then a worker writes what was queued and lets it go
+	 */
+	public void onClientDisconnect(final IRCClient client) {
+		this.tasks.add(new Runnable() {
+			@Override
+			public void run() {
+				IRCConnection.this.server.getConnectedClients(IRCConnection.this).remove(client);
+				SharedResources.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							client.drainAll();
+						} catch (IOException e) {
+							log.log(Level.FINE, "[" + IRCConnection.this.id + "] Couldn't send the last lines to a leaving client", e);
+						}
+						client.finish();
+					}
+				});
+			}
+		});
+		this.strand.schedule();
+	}
+	
+	/**
+	 * Gives up on a client that hung up or can't keep up: it's taken out of the connected list, its socket is closed,
+	 * and the lines still queued for it go back into its profile's backlog on the strand, in sequence order
+	 * with whatever was buffered meanwhile. Safe to call from any thread, and more than once
+	 * @return false if the client had already been dropped
+	 */
+	boolean onClientDropped(final IRCClient client) {
+		if (!client.markDropped()) {
+			return false;
+		}
+		this.server.getConnectedClients(this).remove(client);
+		client.close();
 		
-		if (msgs == null) {
-			msgs = new ArrayList<String>();
-			this.missedMessages.put(client.getNick(), msgs);
+		this.tasks.add(new Runnable() {
+			@Override
+			public void run() {
+				IRCConnection.this.keepUnwritten(client);
+			}
+		});
+		// the strand runs even while we're not connected to the network
+		this.strand.schedule();
+		return true;
+	}
+	
+	private void keepUnwritten(IRCClient client) {
+		List<IRCServer.QueuedLine> unwritten = client.takeUnwritten();
+		List<String> lines = new ArrayList<String>(unwritten.size());
+		List<Long> seqs = new ArrayList<Long>(unwritten.size());
+		for (IRCServer.QueuedLine line : unwritten) {
+			// lines we made up ourselves were never buffered for anyone
+			if (line.seq != 0) {
+				lines.add(line.line);
+				seqs.add(line.seq);
+			}
+		}
+		if (lines.isEmpty()) {
 			return;
 		}
 		
-		for (String msg : msgs) {
+		String nick = client.getNick();
+		boolean attached = false;
+		for (IRCClient c : this.server.getConnectedClients(this)) {
+			if (!c.getNick().equals(nick)) {
+				continue;
+			}
+			// the profile isn't buffered for while another of its clients is attached, so that one gets the lines from
+			// before it attached instead. They follow its replay if it's still going, or come late if it's already live
+			attached = true;
+			boolean wasLive = c.isLive();
+			int handed = c.handBack(unwritten);
+			if (handed > 0 && wasLive) {
+				log.warning("[" + this.id + "] " + handed + " lines client #" + client.getID() + " was never sent reach client #" + c.getID() + " after newer ones, it was already live");
+			} else if (handed > 0) {
+				log.info("[" + this.id + "] Added " + handed + " lines client #" + client.getID() + " was never sent to client #" + c.getID() + "'s replay");
+			}
 			try {
-				client.sendMessage(msg);
+				c.drain();
 			} catch (IOException e) {
-				log.log(Level.SEVERE, "[" + this.networkName + "] Lost connection to client " + client.getConnection().getRemoteSocketAddress() + ", an IOException occurred while writing", e);
-				this.server.getConnectedClients().remove(client);
+				if (this.onClientDropped(c)) {
+					log.log(Level.SEVERE, "[" + this.id + "] Lost connection to client " + c.getConnection().getRemoteSocketAddress(), e);
+				}
 			}
 		}
+		if (attached) {
+			return;
+		}
 		
-		// cleanup
-		msgs.clear();
+		MessageStore store = this.missedMessages.get(nick);
+		if (store == null) {
+			store = this.newProfile(nick);
+		}
+		ReplicationServer r = this.replication;
+		if (r == null) {
+			store.insert(lines, seqs);
+		} else {
+			synchronized (this.backlogLock) {
+				store.insert(lines, seqs);
+				for (int i = 0; i < lines.size(); i++) {
+					r.publish(this, "M " + this.getReplicationKey() + " " + nick + " " + seqs.get(i) + " " + lines.get(i));
+				}
+			}
+		}
+		log.info("[" + this.id + "] Put " + lines.size() + " lines client #" + client.getID() + " was never sent back into " + nick + "'s backlog");
+	}
+	
+	/**
+	 * @return the number of lines buffered for replay, across the server messages and every profile
+	 */
+	public long getBufferedLines() {
+		long lines = this.serverMsgs.size();
+		for (MessageStore store : this.missedMessages.values()) {
+			lines += store.size();
+		}
+		return lines;
+	}
+	
+	/**
+	 * @return the heap used by this connection's buffers
+	 */
+	public long getBufferedBytes() {
+		long bytes = this.serverMsgs.sizeInBytes();
+		for (MessageStore store : this.missedMessages.values()) {
+			bytes += store.sizeInBytes();
+		}
+		return bytes;
+	}
+	/**
+	 * @return the time from reading a line off the network to starting to send it to clients
+	 */
+	public LatencyHistogram getProcessingLatency() {
+		return this.processingLatency;
+	}
+	
+	/**
+	 * @return the time from reading a line off the network until it has been written to each client, replay queueing included
+	 */
+	public LatencyHistogram getDeliveryLatency() {
+		return this.deliveryLatency;
 	}
+	
+	/**
+	 * @return the stages lines from this network go through, stages can be added before the connection starts
+	 */
+	public MessagePipeline getPipeline() {
+		return this.pipeline;
+	}
+	
 	public String getNickName() {
 		return this.nickName;
 	}
@@ -228,23 +846,66 @@ public class IRCConnection implements Runnable {
 	public IRCServer getServer() {
 		return this.server;
 	}
+	
+	public UserConfig getUser() {
+		return this.user;
+	}
+	
+	public String getNetworkName() {
+		return this.networkName;
+	}
+	
+	/**
+	 * @return the user/network name used to tag this connection in logs
+	 */
+	public String getId() {
+		return this.id;
+	}
+	
+	/**
+	 * @return the remote address of the current (or last) upstream connection, null if we never connected
+	 */
+	public InetSocketAddress getConnectedAddress() {
+		return this.connectedAddress;
+	}
+	
+	public boolean isConnected() {
+		Transport t = this.transport;
+		return t != null && t.isOpen();
+	}
 
 	public void stop() {
 		this.isRunning = false;
 		
+		if (!this.isConnected()) {
+			this.closeSocket();
+			return;
+		}
+		
 		try {
 			this.sendMesssage("QUIT :ShaneBouncer shutting down!");
-			this.socket.close();	
 		} catch (IOException e) {
-			log.log(Level.SEVERE, "IOException occurred while shutting down connection to: " + this.networkName, e);
+			log.log(Level.SEVERE, "IOException occurred while shutting down connection to: " + this.id, e);
 		} finally {
-			try {
-				this.socket.close();
-			} catch (IOException e) {
-				// ignored
-			}
+			this.closeSocket();
+		}
+	}
+	
+	/**
+	 * Hangs up on the network, it's reconnected to after the usual delay
+	 */
+	void dropUpstream(String reason) {
+		log.warning("[" + this.id + "] " + reason);
+		this.dropping = true;
+		this.closeSocket();
+		// reading the closed socket fails, which reconnects
+		this.strand.schedule();
+	}
+	
+	private void closeSocket() {
+		Transport t = this.transport;
+		if (t != null) {
+			t.close();
 		}
-		
-		this.getServer().stop();
 	}
 }
@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A line from the network on its way through a {@link MessagePipeline}. Stages can rewrite the line, drop it,
+ * tag it for later stages, or change where it ends up: sent to clients, kept for replay to every new client,
+ * and buffered for profiles that are offline.
+ */
+public class IRCMessage {
+
+	private String line;
+	// the IRCv3 "@key=value;..." block, null if the line has none
+	private String messageTags;
+	// the line after the message tags
+	private String untagged;
+	private String[] words;
+	private String prefix;
+	private String command;
+
+	private boolean dropped = false;
+	private boolean distribute = true;
+	private boolean replay = true;
+	private boolean buffer = true;
+	private Set<String> tags = null;
+
+	public IRCMessage(String line) {
+		this.setLine(line);
+	}
+
+	/**
+	 * Replaces the line, later stages and the clients see the new one
+	 */
+	public void setLine(String line) {
+		this.line = line;
+		this.messageTags = null;
+		this.untagged = line;
+		if (line.startsWith("@")) {
+			int space = line.indexOf(' ');
+			this.messageTags = (space < 0 ? line : line.substring(0, space));
+			this.untagged = (space < 0 ? "" : line.substring(space + 1));
+			while (this.untagged.startsWith(" ")) {
+				this.untagged = this.untagged.substring(1);
+			}
+		}
+		
+		line = this.untagged;
+		this.words = line.split(" ");
+		this.prefix = (line.startsWith(":") ? this.words[0].substring(1) : null);
+
+		int commandIndex = (this.prefix == null ? 0 : 1);
+		this.command = (commandIndex < this.words.length ? this.words[commandIndex].toUpperCase() : "");
+	}
+
+	/**
+	 * @return the whole line, message tags included
+	 */
+	public String getLine() {
+		return this.line;
+	}
+
+	/**
+	 * @return the line without its message tags, starting at the prefix or command
+	 */
+	public String getUntaggedLine() {
+		return this.untagged;
+	}
+
+	/**
+	 * @return the IRCv3 message tags, '@' included, or null if the line has none
+	 */
+	public String getMessageTags() {
+		return this.messageTags;
+	}
+
+	/**
+	 * @return the line without message tags split on spaces, prefix included
+	 */
+	public String[] getWords() {
+		return this.words;
+	}
+
+	/**
+	 * @return the prefix without its leading ':', or null if the line has none
+	 */
+	public String getPrefix() {
+		return this.prefix;
+	}
+
+	/**
+	 * @return the nick (or server name) the line came from, null if it has no prefix
+	 */
+	public String getSender() {
+		if (this.prefix == null) {
+			return null;
+		}
+		int bang = this.prefix.indexOf('!');
+		return (bang < 0 ? this.prefix : this.prefix.substring(0, bang));
+	}
+
+	/**
+	 * @return the command or numeric, upper case
+	 */
+	public String getCommand() {
+		return this.command;
+	}
+
+	/**
+	 * Stops the line here, it isn't sent to clients or stored anywhere
+	 */
+	public void drop() {
+		this.dropped = true;
+	}
+
+	public boolean isDropped() {
+		return this.dropped;
+	}
+
+	public void setDistribute(boolean distribute) {
+		this.distribute = distribute;
+	}
+
+	/**
+	 * @return whether connected clients are sent the line
+	 */
+	public boolean shouldDistribute() {
+		return this.distribute;
+	}
+
+	public void setReplay(boolean replay) {
+		this.replay = replay;
+	}
+
+	/**
+	 * @return whether the line is kept and replayed to every client that connects
+	 */
+	public boolean shouldReplay() {
+		return this.replay;
+	}
+
+	public void setBuffer(boolean buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * @return whether the line is buffered for offline profiles
+	 */
+	public boolean shouldBuffer() {
+		return this.buffer;
+	}
+
+	public void tag(String tag) {
+		if (this.tags == null) {
+			this.tags = new HashSet<String>();
+		}
+		this.tags.add(tag);
+	}
+
+	public boolean hasTag(String tag) {
+		return this.tags != null && this.tags.contains(tag);
+	}
+
+	@Override
+	public String toString() {
+		return this.line;
+	}
+}
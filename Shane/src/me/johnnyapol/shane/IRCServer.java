@@ -14,77 +14,193 @@
  */
 package me.johnnyapol.shane;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.ServerSocket;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 
 public class IRCServer implements Runnable {
 
 	private static final Logger logger = Logger.getLogger("Shane");
+	private static final byte[] CRLF = { '\r', '\n' };
+	// how long a new connection gets to authenticate before we hang up on it, however much it trickles in
+	private static final int AUTH_TIMEOUT_MS = 30000;
+	// lines that may queue up for a client, while its backlog is replayed or because it isn't reading, before we give up on it
+	private static final int MAX_PENDING_LINES = 100000;
 	
 	private volatile int numClients = 0;
-	private final String PASSWORD;
 	
-	private List<IRCClient> connectedClients = new CopyOnWriteArrayList<IRCClient>();
-	private IRCConnection ircServer;
+	// user name -> the network that user reaches through this port
+	private Map<String, IRCConnection> upstreams = new ConcurrentHashMap<String, IRCConnection>();
+	private Map<IRCConnection, List<IRCClient>> connectedClients = new ConcurrentHashMap<IRCConnection, List<IRCClient>>();
 	
 	private int port = 6667;
 	private boolean useSSL = false;
+	private ConnectionLimiter limiter;
+	private volatile ServerSocketChannel serverSocket = null;
 	
-	private boolean isRunning = true;
+	// clients whose writes take longer than this are flagged (and dropped if disconnectSlowClients), 0 turns this off
+	private long slowClientNanos = 0;
+	private boolean disconnectSlowClients = false;
+	private ScheduledFuture<?> slowClientCheck = null;
+	
+	private volatile boolean isRunning = true;
 	/**
 	 * Constructs a new IRCServer instance, which is where clients connect to be proxied into the server
 	 * @param port The port at which the bouncer should run on
-	 * @param _WORD The authentication password that new clients must provide
 	 * @param enableBouncerSSL 
+	 * @param limiter The per-IP connection and login limits, shared between every bouncer port
 	 */
-	public IRCServer(int port, String _WORD, boolean enableBouncerSSL) {
+	public IRCServer(int port, boolean enableBouncerSSL, ConnectionLimiter limiter) {
 		this.port = port;
-		this.PASSWORD = _WORD;
 		this.useSSL = enableBouncerSSL;
+		this.limiter = limiter;
+	}
+	
+	/**
+	 * Sets when a client counts as slow. Call before the server is started
+	 * @param thresholdMs Average write time (or time stuck in a single write) after which a client is slow, 0 to never flag clients
+	 * @param disconnect Whether slow clients are disconnected rather than just logged
+	 */
+	public void setSlowClientPolicy(long thresholdMs, boolean disconnect) {
+		this.slowClientNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMs);
+		this.disconnectSlowClients = disconnect;
 	}
 	
 	/** 
-	 * Called to set the particular IRCConnection instance that this bouncer is responsible for
-	 * @param s The IRCConnection instance, representing the server that this particular bouncer is proxy-ing to
+	 * Registers a network that clients of this bouncer port can be proxied into. Each user can have at most one network per port
+	 * @param s The IRCConnection instance, representing the server that the connection's user is proxy-ing to
+	 * @return false if the user already has a network on this port
 	 */
-	public void setIRCConnection(IRCConnection s) {
-		this.ircServer = s;
+	public boolean addIRCConnection(IRCConnection s) {
+		if (this.upstreams.putIfAbsent(s.getUser().getName(), s) != null) {
+			return false;
+		}
+		this.connectedClients.put(s, new CopyOnWriteArrayList<IRCClient>());
+		return true;
+	}
+	
+	/**
+	 * Checks a password token sent by a client. Tokens of the form user:password log in as that user,
+	 * a bare password only logs in as the default user, for compatibility with single-user setups
+	 * @return the network the client should be attached to, or null if the token doesn't match
+	 */
+	IRCConnection authenticate(String token) {
+		if (token.startsWith(":")) {
+			token = token.substring(1);
+		}
+		
+		int sep = token.indexOf(':');
+		if (sep > 0) {
+			IRCConnection upstream = this.upstreams.get(token.substring(0, sep));
+			if (upstream != null && token.substring(sep + 1).equals(upstream.getUser().getPassword())) {
+				return upstream;
+			}
+		}
+		
+		IRCConnection upstream = this.upstreams.get(UserConfig.DEFAULT_USER);
+		if (upstream != null && token.equals(upstream.getUser().getPassword())) {
+			return upstream;
+		}
+		return null;
 	}
 	
 	/** 
-	 * Represents an IRC client connection to the bouncer. Enforces authentication standards and proxys data server <-> client
+	 * Represents an IRC client connection to the bouncer. Enforces authentication standards and proxys data server <-> client.
+	 * The client's socket is read and written on the shared reader pool, see {@link Strand}, only a backlog replay writes from a worker
 	 * @author john
 	 */
-	class IRCClient implements Runnable {
+	class IRCClient {
+		// lines read per run before the reader thread goes to another connection
+		private static final int MAX_LINES_PER_RUN = 64;
+		// how much a live client may have buffered before we stop handing it lines and wait for its socket
+		private static final int WRITE_CHUNK = 1024;
+		
 		private int clientId;
-		private Socket connection;
+		private final Transport transport;
+		// the transport's socket, for addresses
+		private final Socket connection;
+		private volatile IRCConnection upstream = null;
 		
-		private BufferedReader reader = null;
-		private BufferedWriter writer = null;
+		private final LineReader reader = new LineReader();
+		private final Strand strand = new Strand() {
+			@Override
+			protected void work() {
+				IRCClient.this.work();
+			}
+		};
 		
-		private boolean isConnected = true;
-		private boolean hasAuthenticated = false;
+		private volatile boolean isConnected = true;
+		private volatile boolean hasAuthenticated = false;
+		// set by whichever comes first, a successful login or the login deadline
+		private final AtomicBoolean loginDecided = new AtomicBoolean();
+		private volatile boolean timedOut = false;
+		private volatile ScheduledFuture<?> loginDeadline = null;
+		// whether we still hold one of the limiter's unauthenticated slots
+		private boolean holdsSlot = true;
+		// set once the client sent QUIT, nothing more is read from it
+		private volatile boolean leaving = false;
+		// set once the client has been cleaned up after, see finish()
+		private final AtomicBoolean finished = new AtomicBoolean();
 		
 		private String nick = "default";
 		private int authAttempts = 0;
 		
-		public IRCClient(int clientId, Socket connection) throws IOException {
+		// how long our writes to this client take, and a moving average of the same for spotting slow clients
+		private final LatencyHistogram writeLatency = new LatencyHistogram();
+		// from reading a line off the network to having written it to this client, queueing behind a replay included
+		private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+		private long averageWriteNanos = 0;
+		private volatile boolean isSlow = false;
+		
+		// Live lines from the network go through this queue so they can't overtake the backlog replay, see IRCConnection.onClientConnect().
+		// Whichever thread wins draining hands them to the socket, until the replay is done nobody does. Handed over lines wait
+		// in sending until the socket has taken all of their bytes, so a line only counts as written once it really was
+		private final Queue<QueuedLine> pending = new ConcurrentLinkedQueue<QueuedLine>();
+		private final Queue<QueuedLine> sending = new ConcurrentLinkedQueue<QueuedLine>();
+		// lines a dropped client of the same profile never got, from before this one attached. They go out ahead of pending
+		private final Queue<QueuedLine> late = new ConcurrentLinkedQueue<QueuedLine>();
+		// the first line queued for us rather than replayed, see IRCConnection.onClientConnect()
+		private volatile long cutoff = Long.MAX_VALUE;
+		private final AtomicInteger pendingLines = new AtomicInteger();
+		private final AtomicBoolean draining = new AtomicBoolean();
+		private volatile boolean live = false;
+		// set once we've given up on the client, after that no line is queued for it, see IRCConnection.onClientDropped()
+		private final AtomicBoolean dropped = new AtomicBoolean();
+		
+		IRCClient(int clientId, SocketChannel channel, SSLEngine engine) throws IOException {
 			this.clientId = clientId;
-			this.connection = connection;
-			
-			this.reader = new BufferedReader(new InputStreamReader(this.connection.getInputStream()));
-			this.writer = new BufferedWriter(new OutputStreamWriter(this.connection.getOutputStream()));
+			this.transport = new Transport(channel, engine, new Reactor.Listener() {
+				@Override
+				public void ready(int ops) {
+					IRCClient.this.strand.schedule();
+				}
+			});
+			this.connection = this.transport.socket();
 		}
 		
 		public int getID() {
@@ -95,86 +211,443 @@ public class IRCServer implements Runnable {
 			return this.connection;
 		}
 		
+		/**
+		 * Writes a line straight away, as far as the socket takes it. The rest follows once the socket has room
+		 */
 		public void sendMessage(String msg) throws IOException {
-			this.writer.write(msg + "\r\n");
-			this.writer.flush();
+			this.transport.append((msg + "\r\n").getBytes(StandardCharsets.UTF_8));
+			this.flushNow();
 		}
 		
+		/**
+		 * Writes what the socket takes without waiting, the reactor gets us back to the rest
+		 */
+		private void flushNow() throws IOException {
+			long since = this.transport.getWaitingSince();
+			long began = System.nanoTime();
+			if (this.transport.tryFlush()) {
+				this.recordWrite(System.nanoTime() - (since != 0 ? since : began));
+			}
+		}
 		
-		@Override
-		public void run() {
-			while (IRCServer.this.isRunning || this.isConnected) {
-				String msg = null;
-				
+		private synchronized void recordWrite(long nanos) {
+			this.writeLatency.record(nanos);
+			
+			long threshold = IRCServer.this.slowClientNanos;
+			if (threshold == 0) {
+				return;
+			}
+			// a single slow write is just a hiccup, the average has to stay up for a few writes
+			this.averageWriteNanos += (nanos - this.averageWriteNanos) / 8;
+			
+			if (!this.isSlow && this.averageWriteNanos > threshold) {
+				this.markSlow("average write time " + TimeUnit.NANOSECONDS.toMillis(this.averageWriteNanos) + "ms");
+			} else if (this.isSlow && this.averageWriteNanos < threshold / 2) {
+				this.isSlow = false;
+				logger.info("[ircserver] Client #" + this.clientId + " has caught up");
+			}
+		}
+		
+		/**
+		 * Flags the client as slow, and hangs up on it if that's the policy
+		 */
+		void markSlow(String reason) {
+			this.isSlow = true;
+			if (IRCServer.this.disconnectSlowClients) {
+				logger.warning("[ircserver] Client #" + this.clientId + " (" + this.connection.getRemoteSocketAddress() + ") is too slow, disconnecting: " + reason);
+				this.close();
+			} else {
+				logger.warning("[ircserver] Client #" + this.clientId + " (" + this.connection.getRemoteSocketAddress() + ") is slow: " + reason);
+			}
+		}
+		
+		/**
+		 * Closes the socket, the client's next run finds out and cleans up. Also ends a flush waiting on the socket
+		 */
+		void close() {
+			this.transport.close();
+			this.strand.schedule();
+		}
+		
+		/**
+		 * Queues a line from the network and writes it, unless the backlog is still being replayed or another thread is already writing.
+		 * Once queued the line is the client's, if writing it fails the client is dropped and the line handed back with the rest of the queue
+		 * @param seq The line's sequence number, 0 for lines we make up ourselves
+		 * @param receivedAt System.nanoTime() when the line was read from the network, 0 if it wasn't
+		 * @throws IOException if the line wasn't queued, because the client has been dropped or is too far behind
+		 */
+		void deliver(String msg, long seq, long receivedAt) throws IOException {
+			if (this.dropped.get()) {
+				throw new IOException("Client #" + this.clientId + " has been dropped");
+			}
+			if (this.pendingLines.incrementAndGet() > MAX_PENDING_LINES) {
+				this.pendingLines.decrementAndGet();
+				throw new IOException("Client #" + this.clientId + " fell " + MAX_PENDING_LINES + " lines behind");
+			}
+			this.pending.add(new QueuedLine(msg, seq, receivedAt));
+			try {
+				this.drain();
+			} catch (IOException e) {
+				if (this.upstream.onClientDropped(this)) {
+					logger.log(Level.SEVERE, "[ircserver] Lost connection to client: " + this.connection.getRemoteSocketAddress(), e);
+				}
+			}
+		}
+		
+		void setCutoff(long cutoff) {
+			this.cutoff = cutoff;
+		}
+		
+		boolean isLive() {
+			return this.live;
+		}
+		
+		/**
+		 * Takes over lines another client of the same profile was dropped with. Only the ones from before we attached are
+		 * ours, we've been queued everything since. They're written once we're live, before anything else queued
+		 * @return how many of the lines were taken
+		 */
+		int handBack(List<QueuedLine> lines) {
+			int taken = 0;
+			for (QueuedLine line : lines) {
+				if (line.seq != 0 && line.seq < this.cutoff) {
+					this.pendingLines.incrementAndGet();
+					this.late.add(new QueuedLine(line.line, line.seq, line.receivedAt));
+					taken++;
+				}
+			}
+			return taken;
+		}
+		
+		/**
+		 * Ends the replay, queued and future lines are written from here on
+		 */
+		void goLive() throws IOException {
+			this.live = true;
+			this.drain();
+		}
+		
+		/**
+		 * Hands queued lines to the socket if we're live and nobody else is, without waiting for it. Once the socket is full we
+		 * stop, and the reactor brings us back when it has room. Checks again after letting go, so a line queued while we were
+		 * finishing up isn't left behind
+		 */
+		void drain() throws IOException {
+			while (this.live && this.hasQueued() && this.draining.compareAndSet(false, true)) {
 				try {
-					Thread.sleep(100);
-					while ((msg = reader.readLine()) != null) {
-						// Check if the client is authenticated, if not, their actions are basically restricted to authenticating and setting their nick
-						logger.info("[client#" + this.clientId + "] msg: " + msg);
-						if (!hasAuthenticated) {
-							if (msg.toLowerCase().contains("password") || (msg.toLowerCase().contains("msg") && msg.toLowerCase().contains("bouncer"))) {
-								String[] split = msg.split(" ");
-								// Password check
-								for (String s : split) {
-									if (s.equals(PASSWORD) || s.equals(":" + PASSWORD)) {
-										this.hasAuthenticated = true;
-										this.sendMessage(":irc.shane.net 002 " + nick + " Thanks for authenticating! You are now connected!");
-										IRCServer.this.connectedClients.add(this);
-										IRCServer.logger.info("[ircserver] Client " + this.connection.getRemoteSocketAddress().toString() + " has authenticated succesfully, under nickname " + this.nick);
-										IRCServer.this.ircServer.onClientConnect(this);
-										break;
-									} 
-								}
-								
-								if (!hasAuthenticated) {
-									this.sendMessage(":irc.shane.net 372 " + nick + " Wrong password! Please try again!");
-									authAttempts++;
-									
-									if (authAttempts >= 3) {
-										this.sendMessage(":irc.shane.net 372" + nick + " Too many auth attempts! Goodbye!");
-										IRCServer.logger.warning("[ircserver] Too many failed authentication attempts from: " + this.connection.getRemoteSocketAddress().toString() + ", disconnecting!");
-										this.connection.close();
-										return;
-									}
-								}		
-								continue;
-							}
-							// set the clients nick
-							if (msg.contains("NICK")) {
-								this.nick = msg.split(" ")[1];
-							}
-							
-							continue;
+					while (this.transport.buffered() < WRITE_CHUNK) {
+						QueuedLine line = (this.late.isEmpty() ? this.pending : this.late).poll();
+						if (line == null) {
+							break;
 						}
-						
-						// check to avoid parts caused by clients being closed
-						if (msg.startsWith("PART")) {
-							// ignored
-							continue;
+						line.end = this.transport.append((line.line + "\r\n").getBytes(StandardCharsets.UTF_8));
+						this.sending.add(line);
+					}
+					this.flushNow();
+					this.confirmSent();
+					if (this.transport.buffered() > 0) {
+						return;
+					}
+				} finally {
+					this.draining.set(false);
+				}
+			}
+		}
+		
+		private boolean hasQueued() {
+			return !(this.pending.isEmpty() && this.late.isEmpty() && this.sending.isEmpty());
+		}
+		
+		/**
+		 * Lets go of the lines the socket has taken whole. Only call while holding draining
+		 */
+		private void confirmSent() {
+			long sent = this.transport.getBytesSent();
+			QueuedLine line;
+			while ((line = this.sending.peek()) != null && line.end <= sent) {
+				this.sending.poll();
+				this.pendingLines.decrementAndGet();
+				if (line.receivedAt != 0) {
+					long nanos = System.nanoTime() - line.receivedAt;
+					this.deliveryLatency.record(nanos);
+					this.upstream.getDeliveryLatency().record(nanos);
+				}
+			}
+		}
+		
+		/**
+		 * Writes everything queued, waiting for the socket as long as it takes. For a worker thread, once the client
+		 * has left the connected list so nothing more is queued
+		 */
+		void drainAll() throws IOException {
+			while (this.live && this.hasQueued()) {
+				this.drain();
+				this.flush();
+			}
+		}
+		
+		/**
+		 * Gives up on the client, no more lines are queued for it from now on
+		 * @return false if it had already been dropped
+		 */
+		boolean markDropped() {
+			return this.dropped.compareAndSet(false, true);
+		}
+		
+		boolean isDropped() {
+			return this.dropped.get();
+		}
+		
+		/**
+		 * Empties the queue of a dropped client. Waits for a drain in progress to finish, which doesn't take long since
+		 * it never waits for the socket, and keeps hold of draining so nothing is written after this
+		 * @return the lines that were never written whole, in the order they would have been written
+		 */
+		List<QueuedLine> takeUnwritten() {
+			while (!this.draining.compareAndSet(false, true)) {
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+			}
+			// a flush outside drain() may have sent lines nobody has let go of yet
+			this.confirmSent();
+			List<QueuedLine> lines = new ArrayList<QueuedLine>();
+			for (Queue<QueuedLine> queue : Arrays.asList(this.sending, this.late, this.pending)) {
+				QueuedLine line;
+				while ((line = queue.poll()) != null) {
+					this.pendingLines.decrementAndGet();
+					lines.add(line);
+				}
+			}
+			return lines;
+		}
+		
+		/**
+		 * Writes the line a store cursor is on without building a String, used for replaying backlogs from a worker.
+		 * Waits for the socket every WRITE_CHUNK bytes, call {@link #flush()} when done
+		 */
+		public void sendStored(MessageStore.Cursor cursor) throws IOException {
+			OutputStream out = this.transport.getOutputStream();
+			cursor.writeTo(out);
+			out.write(CRLF);
+			if (this.transport.buffered() >= WRITE_CHUNK) {
+				this.flush();
+			}
+		}
+		
+		/**
+		 * Writes everything buffered, waiting for the socket as long as it takes. Never call this on the reader pool
+		 */
+		public void flush() throws IOException {
+			long began = System.nanoTime();
+			this.transport.flush();
+			this.recordWrite(System.nanoTime() - began);
+		}
+		
+		/**
+		 * @return how many bytes the socket has taken so far. If a write fails, whatever it got through isn't counted
+		 */
+		long getBytesSent() {
+			return this.transport.getBytesSent();
+		}
+		
+		private synchronized void releaseSlot() {
+			if (this.holdsSlot) {
+				this.holdsSlot = false;
+				IRCServer.this.limiter.releaseUnauthenticated(this.connection.getInetAddress());
+			}
+		}
+		
+		/**
+		 * Hangs up on the client if it hasn't logged in yet, however far it got with the SSL handshake
+		 */
+		private void loginTimedOut() {
+			if (!this.loginDecided.compareAndSet(false, true)) {
+				return;
+			}
+			this.timedOut = true;
+			logger.fine("[ircserver] Client #" + this.clientId + " (" + this.connection.getRemoteSocketAddress() + ") didn't log in within " + AUTH_TIMEOUT_MS + "ms, disconnecting");
+			this.close();
+		}
+		
+		/**
+		 * Sends the MOTD and starts reading. For SSL the handshake happens on the reader pool as the client's first bytes come in
+		 */
+		void start() {
+			this.loginDeadline = SharedResources.schedule(new Runnable() {
+				@Override
+				public void run() {
+					IRCClient.this.loginTimedOut();
+				}
+			}, AUTH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			
+			try {
+				// Send our beautiful MOTD
+				// TODO: Am I even doing this right? 
+				this.sendMessage(":irc.shane.net 001 newClient Hello! Welcome to Shane!");
+				this.sendMessage(":irc.shane.net 002 newClient Your host is shanebouncer, running version 1.0");
+				this.sendMessage(":irc.shane.net 003 newClient Please type /password <pass> OR /msg bouncer <password> to authenticate.");
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "IOException while greeting client #" + this.clientId, e);
+				this.finish();
+				return;
+			}
+			this.transport.watchRead();
+		}
+		
+		/**
+		 * One run on the reader pool: writes what the socket has room for, then handles what the client sent
+		 */
+		private void work() {
+			if (this.finished.get()) {
+				return;
+			}
+			
+			try {
+				if (this.live) {
+					this.drain();
+				}
+				if (this.transport.needsFlush()) {
+					this.flushNow();
+				}
+				if (!this.isConnected) {
+					this.finish();
+					return;
+				}
+				if (this.leaving) {
+					return;
+				}
+				
+				for (int n = 0; n < MAX_LINES_PER_RUN; n++) {
+					String msg = this.reader.pollLine(this.transport);
+					if (msg == null) {
+						if (this.reader.isAtEnd()) {
+							// end of stream, the client hung up
+							this.finish();
+						} else {
+							this.transport.watchRead();
 						}
-						
-						if (msg.startsWith("QUIT")) {
-							// terminate connection
-							logger.info("[ircserver] Client #" + this.clientId + " is parting!");
-							IRCServer.this.connectedClients.remove(this);
-							this.connection.close();
-							continue;
+						return;
+					}
+					
+					if (!this.handleLine(msg)) {
+						if (!this.leaving) {
+							this.finish();
 						}
-						
-						// proxy the client's request
-						IRCServer.this.ircServer.sendMesssage(msg);
+						return;
+					}
+				}
+				this.strand.schedule();
+			} catch (Exception e) {
+				if (this.timedOut) {
+					// a storm of these shouldn't turn into a storm of stack traces
+					logger.fine("[ircserver] Closed client #" + this.clientId + " after the login deadline");
+				} else if (!this.dropped.get()) {
+					logger.log(Level.SEVERE, "[ircserver] Lost connection to client: " + this.connection.getRemoteSocketAddress(), e);
+				}
+				this.finish();
+			}
+		}
+		
+		/**
+		 * @return false if we're done reading from the client
+		 */
+		private boolean handleLine(String msg) throws IOException {
+			// Check if the client is authenticated, if not, their actions are basically restricted to authenticating and setting their nick
+			logger.info("[client#" + this.clientId + "] msg: " + (isLogin(msg) ? hideCredentials(msg) : msg));
+			if (!hasAuthenticated) {
+				if (isLogin(msg)) {
+					String[] split = msg.split(" ");
+					// Password check
+					for (String s : split) {
+						IRCConnection upstream = IRCServer.this.authenticate(s);
+						if (upstream != null) {
+							if (!this.loginDecided.compareAndSet(false, true)) {
+								// the deadline beat us to it and has closed the socket
+								return false;
+							}
+							this.loginDeadline.cancel(false);
+							this.hasAuthenticated = true;
+							this.upstream = upstream;
+							this.releaseSlot();
+							IRCServer.this.limiter.recordAuthSuccess(this.connection.getInetAddress());
+							this.sendMessage(":irc.shane.net 002 " + nick + " Thanks for authenticating! You are now connected!");
+							this.writeLatency.register("Client", upstream.getId() + " #" + this.clientId, "write");
+							this.deliveryLatency.register("Client", upstream.getId() + " #" + this.clientId, "delivery");
+							IRCServer.logger.info("[ircserver] Client " + this.connection.getRemoteSocketAddress().toString() + " has authenticated succesfully as " + upstream.getId() + ", under nickname " + this.nick);
+							upstream.onClientConnect(this);
+							return true;
+						} 
+					}
+					
+					this.sendMessage(":irc.shane.net 372 " + nick + " Wrong password! Please try again!");
+					authAttempts++;
+					
+					if (IRCServer.this.limiter.recordAuthFailure(this.connection.getInetAddress())) {
+						this.sendMessage(":irc.shane.net 372 " + nick + " Too many failed logins from your address, try again later. Goodbye!");
+						IRCServer.logger.warning("[ircserver] Banning " + this.connection.getInetAddress().getHostAddress() + " for too many failed authentication attempts");
+						return false;
+					}
+					
+					if (authAttempts >= 3) {
+						this.sendMessage(":irc.shane.net 372" + nick + " Too many auth attempts! Goodbye!");
+						IRCServer.logger.warning("[ircserver] Too many failed authentication attempts from: " + this.connection.getRemoteSocketAddress().toString() + ", disconnecting!");
+						return false;
 					}
-				} catch (Exception e) {
-					logger.log(Level.SEVERE, "[ircserver] Lost connection to client: " + this.connection.getRemoteSocketAddress().toString(), e);
-					break;
+					return true;
 				}
-			}	
+				// set the clients nick
+				if (msg.contains("NICK")) {
+					this.nick = msg.split(" ")[1];
+				}
+				
+				return true;
+			}
+			
+			// check to avoid parts caused by clients being closed
+			if (msg.startsWith("PART")) {
+				// ignored
+				return true;
+			}
+			
+			if (msg.startsWith("QUIT")) {
+				// terminate connection once what's queued for it has been sent
+				logger.info("[ircserver] Client #" + this.clientId + " is parting!");
+				this.leaving = true;
+				this.upstream.onClientDisconnect(this);
+				return false;
+			}
+			
+			// proxy the client's request
+			this.upstream.sendMesssage(msg);
+			return true;
+		}
+		
+		/**
+		 * Cleans up after the client, whichever way it went. Safe to call from any thread, and more than once
+		 */
+		void finish() {
+			if (!this.finished.compareAndSet(false, true)) {
+				return;
+			}
+			if (this.loginDeadline != null) {
+				this.loginDeadline.cancel(false);
+			}
 			this.isConnected = false;
-			// Cleanup 
-			try {
-				this.connection.close();
-			} catch (Throwable t) { // ignored
+			this.releaseSlot();
+			if (this.upstream != null) {
+				// whatever was still queued for it goes back to its backlog
+				this.upstream.onClientDropped(this);
 			}
+			this.writeLatency.unregister();
+			this.deliveryLatency.unregister();
+			// Cleanup 
+			this.transport.close();
+		}
+		
+		/**
+		 * @return System.nanoTime() since when bytes have been waiting for the client to read them, 0 if none are
+		 */
+		long getWaitingSince() {
+			return this.transport.getWaitingSince();
 		}
 		
 		public boolean isConnected() {
@@ -188,50 +661,141 @@ public class IRCServer implements Runnable {
 		public String getNick() {
 			return this.nick;
 		}
+		
+		/**
+		 * @return how long writes to this client have taken
+		 */
+		public LatencyHistogram getWriteLatency() {
+			return this.writeLatency;
+		}
+		
+		/**
+		 * @return how long lines from the network took until they were written to this client
+		 */
+		public LatencyHistogram getDeliveryLatency() {
+			return this.deliveryLatency;
+		}
+		
+		public boolean isSlow() {
+			return this.isSlow;
+		}
+		
+		/**
+		 * @return the network this client was attached to when it authenticated, or null before then
+		 */
+		public IRCConnection getUpstream() {
+			return this.upstream;
+		}
 
 		public void disconnect() {
 			this.isConnected = false;
-			
+			this.strand.schedule();
 		}
 	}
 	
+	/**
+	 * @return whether a client line is a login attempt. PASS lets clients log in with the server password field, e.g. PASS user:password,
+	 *         the others are the /password and /msg bouncer commands from the MOTD
+	 */
+	static boolean isLogin(String msg) {
+		String lower = msg.toLowerCase();
+		return lower.contains("password") || lower.startsWith("pass ") || (lower.contains("msg") && lower.contains("bouncer"));
+	}
+	
+	/**
+	 * @return a login line fit for the log, only its command is kept since any of the other words could be the password
+	 */
+	static String hideCredentials(String msg) {
+		int space = msg.indexOf(' ');
+		return (space < 0 ? msg : msg.substring(0, space) + " <hidden>");
+	}
+	
 	@Override
 	public void run() {
-		ServerSocket socket;
+		ServerSocketChannel socket;
+		SSLContext ssl = null;
 		try {
-			socket = (useSSL ? (SSLServerSocketFactory.getDefault().createServerSocket(port)) : new ServerSocket(this.port))	;
+			if (this.useSSL) {
+				ssl = SSLContext.getDefault();
+			}
+			socket = ServerSocketChannel.open();
+			socket.bind(new InetSocketAddress(this.port));
 		} catch (IOException e) {
 			this.isRunning = false;
 			logger.log(Level.SEVERE, "Failed to create ServerSocket instance, aborting launch.", e);
 			return;
+		} catch (NoSuchAlgorithmException e) {
+			this.isRunning = false;
+			logger.log(Level.SEVERE, "No SSL support for the bouncer port, aborting launch.", e);
+			return;
+		}
+		this.serverSocket = socket;
+		
+		if (this.slowClientNanos > 0) {
+			// catches clients that stop reading altogether, whose write never returns to update the average
+			this.slowClientCheck = SharedResources.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					IRCServer.this.checkStuckClients();
+				}
+			}, 1, TimeUnit.SECONDS);
 		}
 		
+		// the accept thread only accepts and checks limits, from then on the client is read and written on the reader pool
 		while (this.isRunning) {
+			SocketChannel s;
 			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e1) {
-				// ignored
+				s = socket.accept();
+			} catch (IOException e) {
+				if (this.isRunning) {
+					logger.log(Level.SEVERE, "IOException while accepting a client on port " + this.port, e);
+					// usually out of file descriptors, back off a little instead of spinning
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e1) {
+						// ignored
+					}
+				}
+				continue;
 			}
+			
+			InetAddress address = s.socket().getInetAddress();
+			if (!this.limiter.tryAccept(address)) {
+				// don't log every rejection, that's just another way to flood us
+				logger.fine("[ircserver] Rejected connection from " + address.getHostAddress());
+				try {
+					s.close();
+				} catch (IOException e) {
+					// ignored
+				}
+				continue;
+			}
+			
+			IRCClient client;
 			try {
-				Socket s = socket.accept();
 				// apply some socket options
-				s.setTcpNoDelay(true);
-				s.setKeepAlive(true);
+				s.socket().setTcpNoDelay(true);
+				s.socket().setKeepAlive(true);
 				numClients++;
-				logger.info("[ircserver] Got connection id " + numClients + " from " +  s.getRemoteSocketAddress());
-				IRCClient client = new IRCClient(numClients, s);
-				
-				// Send our beautiful MOTD
-				// TODO: Am I even doing this right? 
-				client.sendMessage(":irc.shane.net 001 newClient Hello! Welcome to Shane!");
-				client.sendMessage(":irc.shane.net 002 newClient Your host is shanebouncer, running version 1.0");
-				client.sendMessage(":irc.shane.net 003 newClient Please type /password <pass> OR /msg bouncer <password> to authenticate.");
-				
-				Thread thread = new Thread(client, "Client-" + numClients);
-				thread.start();
+				logger.info("[ircserver] Got connection id " + numClients + " from " +  s.socket().getRemoteSocketAddress());
+				SSLEngine engine = null;
+				if (ssl != null) {
+					engine = ssl.createSSLEngine();
+					engine.setUseClientMode(false);
+					engine.beginHandshake();
+				}
+				client = new IRCClient(numClients, s, engine);
 			} catch (IOException e) {
-				logger.log(Level.SEVERE, "IOException while performing handshake with client #" + this.numClients, e);
+				logger.log(Level.SEVERE, "IOException while setting up client #" + this.numClients, e);
+				this.limiter.releaseUnauthenticated(address);
+				try {
+					s.close();
+				} catch (IOException e1) {
+					// ignored
+				}
+				continue;
 			}
+			client.start();
 		}
 		
 		// Cleanup
@@ -242,45 +806,133 @@ public class IRCServer implements Runnable {
 		}
 	}
 
+	private void checkStuckClients() {
+		long now = System.nanoTime();
+		for (List<IRCClient> clients : this.connectedClients.values()) {
+			for (IRCClient client : clients) {
+				long since = client.getWaitingSince();
+				if (since != 0 && !client.isSlow && now - since > this.slowClientNanos) {
+					client.markSlow("hasn't read what we sent for " + TimeUnit.NANOSECONDS.toMillis(now - since) + "ms");
+				}
+			}
+		}
+	}
+	
 	/**
-	 * Sends a message to all **authenticated** clients, usually just used to echo what was received from the IRC server"
-	 * If any IOException occurs, the connection is assumed to be dead and the orphaned client will be removed from the connected list
+	 * A line queued for a client, with its sequence number so it can go back into a backlog if the client is dropped,
+	 * and when it was read from the network so its delivery latency can be recorded once it's written
+	 */
+	static final class QueuedLine {
+		final String line;
+		final long seq;
+		final long receivedAt;
+		// the client's byte count once this line is written, set when it's handed to the socket
+		long end;
+		
+		QueuedLine(String line, long seq, long receivedAt) {
+			this.line = line;
+			this.seq = seq;
+			this.receivedAt = receivedAt;
+		}
+	}
+	
+	/**
+	 * Sends a message that didn't come from the network to all of its clients, see {@link #distributeMessage(IRCConnection, IRCClient[], String, long, long)}
+	 */
+	public void distributeMessage(IRCConnection source, String msg) {
+		List<IRCClient> clients = this.getConnectedClients(source);
+		this.distributeMessage(source, clients.toArray(new IRCClient[0]), msg, 0, 0);
+	}
+	
+	/**
+	 * Sends a message to all **authenticated** clients of a network, usually just used to echo what was received from the IRC server"
+	 * A client that can't take the line is dropped, see {@link IRCConnection#onClientDropped(IRCClient)}
+	 * @param source The network the message came from
+	 * @param clients The clients to send it to, taken once per line so the caller knows exactly who got it
 	 * @param msg The message to be sent
+	 * @param receivedAt System.nanoTime() when the line was read from the network, the time until it is written to each client is
+	 *        recorded in that client's and the network's delivery latency. 0 if it wasn't read from the network
+	 * @param seq The line's sequence number on the network, 0 if it wasn't read from the network
+	 * @return the clients the line wasn't queued for, because they were dropped
 	 */
-	public void distributeMessage(String msg) {
-		for (IRCClient client : this.connectedClients) {
+	public List<IRCClient> distributeMessage(IRCConnection source, IRCClient[] clients, String msg, long receivedAt, long seq) {
+		List<IRCClient> lost = Collections.emptyList();
+		for (IRCClient client : clients) {
 			try {
-				client.sendMessage(msg);
+				client.deliver(msg, seq, receivedAt);
 			} catch (IOException e) {
+				// the line wasn't queued, so it's the caller's to keep
+				if (lost.isEmpty()) {
+					lost = new ArrayList<IRCClient>();
+				}
+				lost.add(client);
+				if (!source.onClientDropped(client)) {
+					// its own thread or an earlier line got there first
+					continue;
+				}
 				logger.log(Level.SEVERE, "Lost connection to client: " + client.getConnection().getRemoteSocketAddress().toString(), e);
-				this.connectedClients.remove(client);
 				
-				if (this.connectedClients.size() == 0) {
+				if (this.getConnectedClients(source).size() == 0) {
 					try {
-						this.ircServer.sendMesssage("NICK " + this.ircServer.getNickName() + " afk");
+						source.sendMesssage("NICK " + source.getNickName() + " afk");
 					} catch (IOException e1) {
 						logger.log(Level.WARNING, "IOException occurred while setting afk status", e1);
 					}
 				}
-				break;
 			}
 		}
+		return lost;
 	}
 
 	/**
-	 * @return the list of connected clients
+	 * @param upstream The network the clients are attached to
+	 * @return the list of connected clients for that network
+	 */
+	public List<IRCClient> getConnectedClients(IRCConnection upstream) {
+		List<IRCClient> clients = this.connectedClients.get(upstream);
+		return (clients == null ? Collections.<IRCClient>emptyList() : clients);
+	}
+	
+	/**
+	 * @return the number of authenticated clients across every network on this port
 	 */
-	public List<IRCClient> getConnectedClients() {
-		return this.connectedClients;
+	public int getNumConnectedClients() {
+		int count = 0;
+		for (List<IRCClient> clients : this.connectedClients.values()) {
+			count += clients.size();
+		}
+		return count;
+	}
+	
+	public int getPort() {
+		return this.port;
+	}
+	
+	public ConnectionLimiter getLimiter() {
+		return this.limiter;
 	}
 	
 	public void stop() {
 		this.isRunning = false;
+		if (this.slowClientCheck != null) {
+			this.slowClientCheck.cancel(false);
+		}
+		
+		// unblocks accept()
+		if (this.serverSocket != null) {
+			try {
+				this.serverSocket.close();
+			} catch (IOException e) {
+				// ignored
+			}
+		}
 		
 		// Kick all clients off
-		this.distributeMessage(":irc.shane.net 372 bouncer Bouncer is shutting down! Goodbye!");
-		for (IRCClient client : this.connectedClients) {
-			client.disconnect();
+		for (IRCConnection upstream : this.connectedClients.keySet()) {
+			this.distributeMessage(upstream, ":irc.shane.net 372 bouncer Bouncer is shutting down! Goodbye!");
+			for (IRCClient client : this.getConnectedClients(upstream)) {
+				client.disconnect();
+			}
 		}
 	}
 	
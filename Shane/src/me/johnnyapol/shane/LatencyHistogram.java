@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Fixed-size latency histogram with microsecond resolution, cheap enough to record every line we forward.
+ *
+ * Values under 8us get a bucket each, above that every power of two is split into 8 buckets, so a percentile is
+ * never more than 12.5% off. Anything over 2^31us, about 35.8 minutes, lands in the last bucket. Recording is a few atomic adds
+ * and never allocates, reading percentiles copies the counts once.
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 30;
+	private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+	private static final long MAX_MICROS = (1L << (MAX_EXPONENT + 1)) - 1;
+
+	private static final Logger log = Logger.getLogger("Shane");
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	private volatile ObjectName objectName = null;
+
+	/**
+	 * @param nanos The latency, as a difference of System.nanoTime() values
+	 */
+	public void record(long nanos) {
+		long micros = Math.min(MAX_MICROS, Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+
+		this.counts.incrementAndGet(bucketOf(micros));
+		this.count.incrementAndGet();
+		this.totalMicros.addAndGet(micros);
+
+		long max = this.maxMicros.get();
+		while (micros > max && !this.maxMicros.compareAndSet(max, micros)) {
+			max = this.maxMicros.get();
+		}
+	}
+
+	static int bucketOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return the largest value that lands in a bucket
+	 */
+	static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+		int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		long lower = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100
+	 * @return the latency in microseconds that the given share of recorded values were at or under, 0 if nothing was recorded
+	 */
+	public long getPercentileMicros(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = this.counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), this.maxMicros.get());
+			}
+		}
+		return this.maxMicros.get();
+	}
+
+	@Override
+	public long getCount() {
+		return this.count.get();
+	}
+
+	@Override
+	public long getMeanMicros() {
+		long n = this.count.get();
+		return (n == 0 ? 0 : this.totalMicros.get() / n);
+	}
+
+	@Override
+	public long getP50Micros() {
+		return this.getPercentileMicros(50);
+	}
+
+	@Override
+	public long getP90Micros() {
+		return this.getPercentileMicros(90);
+	}
+
+	@Override
+	public long getP99Micros() {
+		return this.getPercentileMicros(99);
+	}
+
+	@Override
+	public long getP999Micros() {
+		return this.getPercentileMicros(99.9);
+	}
+
+	@Override
+	public long getMaxMicros() {
+		return this.maxMicros.get();
+	}
+
+	/**
+	 * Forgets everything recorded so far. Values recorded at the same time may be half counted
+	 */
+	@Override
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			this.counts.set(i, 0);
+		}
+		this.count.set(0);
+		this.totalMicros.set(0);
+		this.maxMicros.set(0);
+	}
+
+	/**
+	 * @return p50/p99/max in milliseconds, for the console
+	 */
+	public String summary() {
+		return String.format("p50 %.1fms, p99 %.1fms, max %.1fms (%d samples)", this.getP50Micros() / 1000.0, this.getP99Micros() / 1000.0,
+				this.getMaxMicros() / 1000.0, this.getCount());
+	}
+
+	/**
+	 * Publishes this histogram over JMX as me.johnnyapol.shane:type=..,name=..,histogram=..
+	 */
+	public void register(String type, String name, String histogram) {
+		try {
+			ObjectName objectName = new ObjectName("me.johnnyapol.shane:type=" + type + ",name=" + ObjectName.quote(name) + ",histogram=" + histogram);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(this, objectName);
+				this.objectName = objectName;
+			}
+		} catch (JMException e) {
+			log.log(Level.WARNING, "[jmx] failed to register " + type + " " + name + " " + histogram, e);
+		}
+	}
+
+	public void unregister() {
+		ObjectName objectName = this.objectName;
+		if (objectName == null) {
+			return;
+		}
+		this.objectName = null;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			// already gone
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads CRLF (or LF) terminated UTF-8 lines, either blocking off a stream or without blocking off a channel.
+ * BufferedReader + InputStreamReader cost ~24KB per connection before a single byte is read, this starts at
+ * 512 bytes (one RFC 1459 line) and only grows for connections that actually send long lines. The buffer is let go
+ * whenever it empties, so an idle connection holds none.
+ */
+public class LineReader {
+
+	private static final int INITIAL_SIZE = 512;
+	// IRCv3 message tags can push a line up to 8191 bytes + 512 for the message itself
+	private static final int MAX_LINE = 8704;
+
+	private final InputStream in;
+	private byte[] buf = null;
+	private int start = 0;
+	private int end = 0;
+	// everything before this has been searched for a line end already
+	private int scanned = 0;
+	private boolean atEnd = false;
+
+	/**
+	 * For reading with {@link #readLine()}
+	 */
+	public LineReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * For reading with {@link #pollLine(ReadableByteChannel)}
+	 */
+	public LineReader() {
+		this(null);
+	}
+
+	/**
+	 * @return the next line without its terminator, or null once the stream is closed
+	 * @throws IOException if the underlying read fails
+	 */
+	public String readLine() throws IOException {
+		while (true) {
+			String line = this.take();
+			if (line != null || this.atEnd) {
+				return line;
+			}
+
+			int read = this.in.read(this.buf, this.end, this.buf.length - this.end);
+			if (read < 0) {
+				this.atEnd = true;
+				return this.takeRest();
+			}
+			this.end += read;
+		}
+	}
+
+	/**
+	 * Reads a line without blocking, from what's buffered and whatever the channel has ready
+	 * @return the next line without its terminator, or null if there isn't a whole one yet or the channel is done,
+	 *         see {@link #isAtEnd()}
+	 * @throws IOException if the underlying read fails
+	 */
+	public String pollLine(ReadableByteChannel channel) throws IOException {
+		while (true) {
+			String line = this.take();
+			if (line != null || this.atEnd) {
+				return line;
+			}
+
+			int read = channel.read(ByteBuffer.wrap(this.buf, this.end, this.buf.length - this.end));
+			if (read < 0) {
+				this.atEnd = true;
+				return this.takeRest();
+			}
+			if (read == 0) {
+				return null;
+			}
+			this.end += read;
+		}
+	}
+
+	/**
+	 * @return true once the other side has closed and every line has been read
+	 */
+	public boolean isAtEnd() {
+		return this.atEnd && this.start == this.end;
+	}
+
+	/**
+	 * @return the next whole line in the buffer, or null after making room to read more into
+	 */
+	private String take() {
+		if (this.start == this.end) {
+			this.start = this.end = this.scanned = 0;
+			if (this.atEnd) {
+				this.buf = null;
+				return null;
+			}
+			if (this.buf == null || this.buf.length > INITIAL_SIZE) {
+				// also gives back the memory from the last long line
+				this.buf = new byte[INITIAL_SIZE];
+			}
+		}
+
+		for (int i = this.scanned; i < this.end; i++) {
+			if (this.buf[i] == '\n') {
+				int len = i - this.start;
+				if (len > 0 && this.buf[i - 1] == '\r') {
+					len--;
+				}
+				String line = new String(this.buf, this.start, len, StandardCharsets.UTF_8);
+				this.start = this.scanned = i + 1;
+				if (this.start == this.end) {
+					this.buf = null;
+					this.start = this.end = this.scanned = 0;
+				}
+				return line;
+			}
+		}
+		this.scanned = this.end;
+
+		if (this.end == this.buf.length) {
+			if (this.start > 0) {
+				// shift the partial line to the front
+				System.arraycopy(this.buf, this.start, this.buf, 0, this.end - this.start);
+				this.scanned -= this.start;
+				this.end -= this.start;
+				this.start = 0;
+			} else if (this.buf.length < MAX_LINE) {
+				this.buf = Arrays.copyOf(this.buf, Math.min(this.buf.length * 2, MAX_LINE));
+			} else {
+				// overlong line, hand back what we have rather than buffering forever
+				String line = new String(this.buf, 0, this.end, StandardCharsets.UTF_8);
+				this.buf = null;
+				this.start = this.end = this.scanned = 0;
+				return line;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the unterminated line left once the stream ends, or null if there isn't one
+	 */
+	private String takeRest() {
+		if (this.end == this.start) {
+			return null;
+		}
+		String line = new String(this.buf, this.start, this.end - this.start, StandardCharsets.UTF_8);
+		this.buf = null;
+		this.start = this.end = this.scanned = 0;
+		return line;
+	}
+}
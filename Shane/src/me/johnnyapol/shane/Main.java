@@ -20,18 +20,29 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class Main {
 
 	private static final Logger log = Logger.getLogger("Shane");
 	
+	// high availability, at most one of these is set depending on ha-mode
+	private static ReplicationServer replication = null;
+	private static StandbyReplica standby = null;
+	
 	public static void main(String[] args) throws IOException {
 		final long start = System.currentTimeMillis();
 		log.info("*** starting shane v1.0 by github.com/johnnyapol ***");
@@ -60,15 +71,42 @@ public class Main {
 			if (line.equalsIgnoreCase("stop")) {
 				log.info("[shane] received stop command, shutting down!");
 				
+				if (replication != null) {
+					replication.stop();
+				}
+				if (standby != null) {
+					standby.stop();
+				}
+				
+				Set<IRCServer> servers = new LinkedHashSet<IRCServer>();
 				for (IRCConnection connection : connections) {
 					connection.stop();
+					servers.add(connection.getServer());
 				}
 				
+				for (IRCServer server : servers) {
+					server.stop();
+				}
+				SharedResources.shutdown();
+				
 				break;
 			}
 			
+			if (line.toLowerCase().startsWith("latency")) {
+				printLatency(connections, line.toLowerCase().endsWith("reset"));
+				continue;
+			}
+			
+			if (line.equalsIgnoreCase("pipeline")) {
+				for (MessagePipeline.StageStats stage : MessagePipeline.getStats()) {
+					log.info("[pipeline] " + stage.getName() + ": " + stage.getTiming().summary() + ", dropped " + stage.getDropped());
+				}
+				continue;
+			}
+			
 			if (line.equalsIgnoreCase("stats")) {
 				log.info("[shane] up since: " + new Date(start));
+				printStats(connections);
 				continue;
 			}
 		}
@@ -86,6 +124,28 @@ public class Main {
 				.append("#The following only need to be changed if you intend on using SSL on your bouncer." + System.lineSeparator())
 				.append("bouncer-ssl-keystore=path" + System.lineSeparator())
 				.append("bouncer-ssl-password=password" + System.lineSeparator())
+				.append("#Limits for clients connecting to the bouncer: new connections per minute from one address, failed logins before that address is banned," + System.lineSeparator())
+				.append("#how long the ban lasts, and how many connections may be waiting to log in at once, in total and from one address" + System.lineSeparator())
+				.append("client-connections-per-minute=30" + System.lineSeparator())
+				.append("client-max-auth-failures=5" + System.lineSeparator())
+				.append("client-ban-minutes=10" + System.lineSeparator())
+				.append("client-max-unauthenticated=100" + System.lineSeparator())
+				.append("client-max-unauthenticated-per-host=10" + System.lineSeparator())
+				.append("#Clients whose writes average more than slow-client-ms (or that stop reading for that long) are slow, slow-client-action=warn logs them" + System.lineSeparator())
+				.append("#and slow-client-action=disconnect drops them so they can't hold up the network. slow-client-ms=0 turns this off" + System.lineSeparator())
+				.append("slow-client-ms=2000" + System.lineSeparator())
+				.append("slow-client-action=warn" + System.lineSeparator())
+				.append("#High availability: ha-mode=primary streams backlogs to a standby connecting on ha-port, ha-mode=standby follows the primary at ha-peer" + System.lineSeparator())
+				.append("#and takes over once it has been silent for ha-timeout-seconds. Both sides need the same ha-secret" + System.lineSeparator())
+				.append("#Backlogs are streamed in plain text, so only bind ha-bind to an address the standby alone can reach" + System.lineSeparator())
+				.append("ha-mode=off" + System.lineSeparator())
+				.append("ha-bind=127.0.0.1" + System.lineSeparator())
+				.append("ha-port=6670" + System.lineSeparator())
+				.append("ha-peer=localhost:6670" + System.lineSeparator())
+				.append("ha-secret=shanereplica" + (Math.random() * Math.random() * 10000) + System.lineSeparator())
+				.append("ha-timeout-seconds=5" + System.lineSeparator())
+				.append("#Additional users are denoted by a [user:name] block with their own password and afk-msg, networks are assigned to them with user=name" + System.lineSeparator())
+				.append("#Networks without a user= line belong to the default user, which uses the password above" + System.lineSeparator())
 				.append("#IRC networks are denoted by a [network name] and ended with an [end] block" + System.lineSeparator())
 				.append("[freenode]" + System.lineSeparator())
 				.append("	ip=irc.freenode.net" + System.lineSeparator())
@@ -94,6 +154,10 @@ public class Main {
 				.append("	nick=shanebouncer" + System.lineSeparator())
 				.append("	channels=##networking,#general" + System.lineSeparator())
 				.append("	bouncer-port=6667" + System.lineSeparator())
+				.append("	#nicks whose messages are never shown or stored" + System.lineSeparator())
+				.append("	#ignore=spambot,otherbot" + System.lineSeparator())
+				.append("	#profiles whose missed messages get join/part/quit/nick churn collapsed into the net changes, * for all" + System.lineSeparator())
+				.append("	#compact-profiles=*" + System.lineSeparator())
 				.append("[end]").toString();
 		
 		FileWriter fWriter = new FileWriter(cfg);
@@ -104,8 +168,14 @@ public class Main {
 	public static List<IRCConnection> loadCfg(File cfg) throws IOException {
 		String afk = null, password = null;
 		boolean enableBouncerSSL = false;
+		int connectionsPerMinute = 30, maxAuthFailures = 5, banMinutes = 10, maxUnauthenticated = 100, maxUnauthenticatedPerHost = 10;
+		String haMode = "off", haPeer = null, haSecret = null, haBind = "127.0.0.1";
+		int haPort = 6670, haTimeout = 5;
+		long slowClientMs = 2000;
+		boolean disconnectSlowClients = false;
 		
-		Map<String, ServerConfig> serverConfigs = new HashMap<String, ServerConfig>();
+		Map<String, ServerConfig> serverConfigs = new LinkedHashMap<String, ServerConfig>();
+		Map<String, UserConfig> users = new LinkedHashMap<String, UserConfig>();
 		
 		BufferedReader reader = new BufferedReader(new FileReader(cfg));
 		String line;
@@ -122,8 +192,13 @@ public class Main {
 			if (isServer) {
 				if (line.equalsIgnoreCase("[end]")) {
 					isServer = false;
-					String[] lines = new String[serverLines.size()];
-					serverConfigs.put(serverName, new ServerConfig(serverLines.toArray(lines)));
+					String[] lines = serverLines.toArray(new String[serverLines.size()]);
+					if (serverName.toLowerCase().startsWith("user:")) {
+						String userName = serverName.substring("user:".length()).trim();
+						users.put(userName, new UserConfig(userName, lines));
+					} else {
+						serverConfigs.put(serverName, new ServerConfig(lines));
+					}
 					serverLines.clear();
 					serverName = "";
 					continue;
@@ -160,6 +235,71 @@ public class Main {
 					continue;
 				}
 				
+				if (key.equalsIgnoreCase("client-connections-per-minute")) {
+					connectionsPerMinute = Integer.parseInt(value);
+					continue;
+				}
+				
+				if (key.equalsIgnoreCase("client-max-auth-failures")) {
+					maxAuthFailures = Integer.parseInt(value);
+					continue;
+				}
+				
+				if (key.equalsIgnoreCase("client-ban-minutes")) {
+					banMinutes = Integer.parseInt(value);
+					continue;
+				}
+				
+				if (key.equalsIgnoreCase("client-max-unauthenticated")) {
+					maxUnauthenticated = Integer.parseInt(value);
+					continue;
+				}
+				
+				if (key.equalsIgnoreCase("client-max-unauthenticated-per-host")) {
+					maxUnauthenticatedPerHost = Integer.parseInt(value);
+					continue;
+				}
+				
+				if (key.equalsIgnoreCase("slow-client-ms")) {
+					slowClientMs = Long.parseLong(value);
+					continue;
+				}
+				
+				if (key.equalsIgnoreCase("slow-client-action")) {
+					disconnectSlowClients = value.equalsIgnoreCase("disconnect");
+					continue;
+				}
+				
+				if (key.equalsIgnoreCase("ha-mode")) {
+					haMode = value.toLowerCase();
+					continue;
+				}
+				
+				if (key.equalsIgnoreCase("ha-port")) {
+					haPort = Integer.parseInt(value);
+					continue;
+				}
+				
+				if (key.equalsIgnoreCase("ha-bind")) {
+					haBind = (value.equals("*") ? null : value);
+					continue;
+				}
+				
+				if (key.equalsIgnoreCase("ha-peer")) {
+					haPeer = value;
+					continue;
+				}
+				
+				if (key.equalsIgnoreCase("ha-secret")) {
+					haSecret = value;
+					continue;
+				}
+				
+				if (key.equalsIgnoreCase("ha-timeout-seconds")) {
+					haTimeout = Integer.parseInt(value);
+					continue;
+				}
+				
 				if (key.equalsIgnoreCase("bouncer-ssl-keystore") && enableBouncerSSL) {
 					System.setProperty("javax.net.ssl.keyStore", value);
 					continue;
@@ -176,24 +316,194 @@ public class Main {
 		
 		reader.close();
 		
-		Iterator<String> servers = serverConfigs.keySet().iterator();
+		// the global password/afk-msg make up the default user, so single-user configs keep working untouched
+		UserConfig defaultUser = users.get(UserConfig.DEFAULT_USER);
+		if (defaultUser == null) {
+			defaultUser = new UserConfig(UserConfig.DEFAULT_USER, password, afk);
+			users.put(UserConfig.DEFAULT_USER, defaultUser);
+		}
+		
+		Iterator<UserConfig> userIterator = users.values().iterator();
+		while (userIterator.hasNext()) {
+			UserConfig user = userIterator.next();
+			if (user.getPassword() == null || user.getPassword().isEmpty()) {
+				if (!user.getName().equals(UserConfig.DEFAULT_USER)) {
+					// falling back to the global password would let anyone who knows it into this user's networks
+					log.severe("[cfg] user " + user.getName() + " has no password, skipping it and its networks");
+					userIterator.remove();
+					continue;
+				}
+				user.setPassword(password);
+			}
+			if (user.getAfkMsg() == null || user.getAfkMsg().isEmpty()) {
+				user.setAfkMsg(afk);
+			}
+		}
+		
+		for (Map.Entry<String, ServerConfig> entry : serverConfigs.entrySet()) {
+			UserConfig user = users.get(entry.getValue().getUser());
+			
+			if (user == null) {
+				log.warning("[cfg] network " + entry.getKey() + " belongs to unknown user " + entry.getValue().getUser() + ", skipping");
+				continue;
+			}
+			user.addNetwork(entry.getKey(), entry.getValue());
+		}
+		
+		ConnectionLimiter limiter = new ConnectionLimiter(connectionsPerMinute, maxAuthFailures, banMinutes, maxUnauthenticated, maxUnauthenticatedPerHost);
 		
+		// one listener per bouncer port, shared by every user whose networks live on it
+		Map<Integer, IRCServer> servers = new HashMap<Integer, IRCServer>();
 		List<IRCConnection> connections = new ArrayList<IRCConnection>();
 		
-		while (servers.hasNext()) {
-			String name = servers.next();
+		for (UserConfig user : users.values()) {
+			for (Map.Entry<String, ServerConfig> entry : user.getNetworks().entrySet()) {
+				String name = entry.getKey();
+				ServerConfig server_cfg = entry.getValue();
+				
+				IRCServer server = servers.get(server_cfg.getBouncerPort());
+				if (server == null) {
+					server = new IRCServer(server_cfg.getBouncerPort(), enableBouncerSSL, limiter);
+					server.setSlowClientPolicy(slowClientMs, disconnectSlowClients);
+					servers.put(server_cfg.getBouncerPort(), server);
+				}
+				
+				IRCConnection connection = new IRCConnection(user, name, server_cfg, server);
+				if (!server.addIRCConnection(connection)) {
+					log.warning("[cfg] user " + user.getName() + " already has a network on bouncer port " + server_cfg.getBouncerPort() + ", skipping " + name);
+					continue;
+				}
+				
+				connections.add(connection);
+			}
+		}
+		
+		log.info("[core] " + connections.size() + " networks for " + users.size() + " users on " + servers.size() + " bouncer ports");
+		
+		if (haMode.equals("standby")) {
+			if (haPeer == null || haSecret == null || !haPeer.contains(":")) {
+				throw new IOException("ha-mode=standby needs ha-peer=host:port and ha-secret");
+			}
 			
-			log.info("[core] Connecting to " + name);
+			final List<IRCConnection> toStart = connections;
+			final Collection<IRCServer> toListen = servers.values();
+			String peerHost = haPeer.substring(0, haPeer.lastIndexOf(':'));
+			int peerPort = Integer.parseInt(haPeer.substring(haPeer.lastIndexOf(':') + 1));
 			
-			ServerConfig server_cfg = serverConfigs.get(name);
-			IRCServer server = new IRCServer(server_cfg.getBouncerPort(), password, enableBouncerSSL);	
-			IRCConnection connection = new IRCConnection(name, server_cfg.getIpAddress(), server_cfg.getPort(), server, server_cfg.getNickname(), server_cfg.getChannels(), server_cfg.getUseSSL(), afk);
-			new Thread(server).start();
-			new Thread(connection).start();
+			// nothing connects or listens until the primary goes away
+			standby = new StandbyReplica(peerHost, peerPort, haSecret, TimeUnit.SECONDS.toMillis(haTimeout), new Runnable() {
+				@Override
+				public void run() {
+					for (IRCConnection connection : toStart) {
+						String key = connection.getReplicationKey();
+						connection.restore(standby.getMissedMessages(key), standby.getChannels(key));
+						// if the primary still holds our nick it isn't dead, we just can't reach it
+						connection.getPipeline().addBefore("ping", new MessagePipeline.TakeoverFenceStage());
+					}
+					start(toStart, toListen);
+				}
+			});
+			SharedResources.newThread(standby, "Standby").start();
+			log.info("[ha] running as standby for " + haPeer);
+			return connections;
+		}
+		
+		if (haMode.equals("primary")) {
+			if (haSecret == null) {
+				throw new IOException("ha-mode=primary needs an ha-secret");
+			}
 			
-			connections.add(connection);
-		}	
+			replication = new ReplicationServer(haPort, haBind, haSecret, connections);
+			for (IRCConnection connection : connections) {
+				connection.setReplication(replication);
+			}
+			SharedResources.newThread(replication, "Replication-" + haPort).start();
+		}
 		
+		start(connections, servers.values());
 		return connections;
 	}
+	
+	private static void start(List<IRCConnection> connections, Collection<IRCServer> servers) {
+		for (IRCConnection connection : connections) {
+			log.info("[core] Connecting to " + connection.getId());
+			connection.start();
+		}
+		
+		for (IRCServer server : servers) {
+			SharedResources.newThread(server, "IRCServer-" + server.getPort()).start();
+		}
+	}
+	
+	private static void printLatency(List<IRCConnection> connections, boolean reset) {
+		for (IRCConnection connection : connections) {
+			List<IRCServer.IRCClient> clients = connection.getServer().getConnectedClients(connection);
+			if (reset) {
+				connection.getProcessingLatency().reset();
+				connection.getDeliveryLatency().reset();
+				for (IRCServer.IRCClient client : clients) {
+					client.getWriteLatency().reset();
+					client.getDeliveryLatency().reset();
+				}
+				continue;
+			}
+			
+			log.info("[latency] " + connection.getId() + " processing: " + connection.getProcessingLatency().summary());
+			log.info("[latency] " + connection.getId() + " delivery: " + connection.getDeliveryLatency().summary());
+			for (IRCServer.IRCClient client : clients) {
+				log.info("[latency] " + connection.getId() + " client #" + client.getID() + " (" + client.getNick() + ") write: " + client.getWriteLatency().summary()
+						+ ", delivery: " + client.getDeliveryLatency().summary() + (client.isSlow() ? ", SLOW" : ""));
+			}
+		}
+		if (reset) {
+			log.info("[latency] histograms reset");
+		}
+	}
+	
+	private static void printStats(List<IRCConnection> connections) {
+		Set<String> users = new LinkedHashSet<String>();
+		Set<IRCServer> servers = new LinkedHashSet<IRCServer>();
+		int connected = 0, ipv6 = 0;
+		long bufferedLines = 0, bufferedBytes = 0;
+		
+		for (IRCConnection connection : connections) {
+			users.add(connection.getUser().getName());
+			servers.add(connection.getServer());
+			bufferedLines += connection.getBufferedLines();
+			bufferedBytes += connection.getBufferedBytes();
+			if (connection.isConnected()) {
+				connected++;
+				InetSocketAddress address = connection.getConnectedAddress();
+				if (address != null && address.getAddress() instanceof Inet6Address) {
+					ipv6++;
+				}
+			}
+		}
+		
+		int clients = 0;
+		ConnectionLimiter limiter = null;
+		for (IRCServer server : servers) {
+			clients += server.getNumConnectedClients();
+			limiter = server.getLimiter();
+		}
+		
+		Runtime rt = Runtime.getRuntime();
+		long used = rt.totalMemory() - rt.freeMemory();
+		
+		log.info("[shane] users: " + users.size() + ", networks: " + connected + "/" + connections.size() + " connected, clients: " + clients + ", threads: " + SharedResources.getLiveThreads());
+		if (limiter != null) {
+			log.info("[shane] clients waiting to authenticate: " + limiter.getUnauthenticated() + ", banned addresses: " + limiter.getBanned());
+		}
+		log.info("[shane] upstreams over ipv6: " + ipv6 + ", ipv4: " + (connected - ipv6) + ", connect races: " + HappyEyeballs.getStats());
+		// the symbols are part of what the backlog costs, however many lines share them
+		long symbolBytes = SymbolTable.sizeInBytes();
+		log.info("[shane] backlog: " + bufferedLines + " lines in " + (bufferedBytes / 1024) + "KB, symbols: " + SymbolTable.size() + " in " + (symbolBytes / 1024) + "KB"
+				+ (bufferedLines == 0 ? "" : " (~" + ((bufferedBytes + symbolBytes) / bufferedLines) + " bytes per line with symbols)"));
+		if (replication != null) {
+			log.info("[shane] ha primary, standby " + (replication.hasStandby() ? "connected" : "not connected"));
+		} else if (standby != null) {
+			log.info("[shane] ha standby, " + (standby.hasTakenOver() ? "took over from the primary" : standby.isSynced() ? "synced with primary" : "waiting for primary"));
+		}
+		log.info("[shane] heap used: " + (used / 1024) + "KB" + (connections.isEmpty() ? "" : ", ~" + (used / 1024 / connections.size()) + "KB per network"));
+	}
 }
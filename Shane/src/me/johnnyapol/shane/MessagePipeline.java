@@ -0,0 +1,338 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ordered stages every line from a network goes through before it is sent to clients and stored.
+ * A stage only runs when it accepts the line's command, and once a stage drops a line the rest are skipped.
+ *
+ * Each connection has its own pipeline, but the time spent in a stage is recorded per stage name across every connection,
+ * so an expensive stage shows up in the "pipeline" console command no matter which network it runs on.
+ */
+public class MessagePipeline {
+
+	/**
+	 * Time spent in and lines dropped by a stage, shared by every pipeline with a stage of that name
+	 */
+	public static final class StageStats {
+		private final String name;
+		private final LatencyHistogram timing = new LatencyHistogram();
+		private final AtomicLong dropped = new AtomicLong();
+
+		private StageStats(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public LatencyHistogram getTiming() {
+			return this.timing;
+		}
+
+		public long getDropped() {
+			return this.dropped.get();
+		}
+	}
+
+	// in the order stages were first seen, which is pipeline order for the standard stages
+	private static final Map<String, StageStats> stats = new LinkedHashMap<String, StageStats>();
+
+	private static StageStats statsFor(String name) {
+		synchronized (stats) {
+			StageStats s = stats.get(name);
+			if (s == null) {
+				s = new StageStats(name);
+				stats.put(name, s);
+				s.timing.register("Stage", name, "timing");
+			}
+			return s;
+		}
+	}
+
+	/**
+	 * @return timings for every stage any pipeline has used
+	 */
+	public static List<StageStats> getStats() {
+		synchronized (stats) {
+			return new ArrayList<StageStats>(stats.values());
+		}
+	}
+
+	private static final class Entry {
+		final MessageStage stage;
+		final StageStats stats;
+
+		Entry(MessageStage stage) {
+			this.stage = stage;
+			this.stats = statsFor(stage.getName());
+		}
+	}
+
+	private final List<Entry> entries = new CopyOnWriteArrayList<Entry>();
+
+	/**
+	 * Adds a stage after the existing ones
+	 */
+	public void add(MessageStage stage) {
+		this.entries.add(new Entry(stage));
+	}
+
+	/**
+	 * Adds a stage in front of the named one, or at the end if there's no stage by that name
+	 */
+	public void addBefore(String name, MessageStage stage) {
+		for (int i = 0; i < this.entries.size(); i++) {
+			if (this.entries.get(i).stage.getName().equals(name)) {
+				this.entries.add(i, new Entry(stage));
+				return;
+			}
+		}
+		this.add(stage);
+	}
+
+	/**
+	 * @return the names of the stages, in order
+	 */
+	public List<String> getStageNames() {
+		List<String> names = new ArrayList<String>();
+		for (Entry entry : this.entries) {
+			names.add(entry.stage.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * Runs a line through every stage that accepts it, stopping early if it's dropped
+	 */
+	public void process(IRCConnection connection, IRCMessage msg) throws IOException {
+		for (Entry entry : this.entries) {
+			if (!entry.stage.accepts(msg.getCommand())) {
+				continue;
+			}
+
+			long began = System.nanoTime();
+			try {
+				entry.stage.process(connection, msg);
+			} finally {
+				entry.stats.timing.record(System.nanoTime() - began);
+			}
+
+			if (msg.isDropped()) {
+				entry.stats.dropped.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Builds the stages every network starts with
+	 * @param cfg The network's config, for its ignore list
+	 */
+	public static MessagePipeline standard(ServerConfig cfg) {
+		MessagePipeline pipeline = new MessagePipeline();
+		pipeline.add(new PingStage());
+		if (cfg.getIgnored().length > 0) {
+			pipeline.add(new IgnoreStage(cfg.getIgnored()));
+		}
+		pipeline.add(new ChannelStage());
+		pipeline.add(new ReplayFilterStage());
+		pipeline.add(new HighlightStage());
+		pipeline.add(new AfkStage());
+		return pipeline;
+	}
+
+	/**
+	 * Fencing for a standby that has just taken over. If the network says our nick is in use before we've registered,
+	 * the primary is most likely still connected and only cut off from us, so we hang up and try again later instead
+	 * of running a second bouncer next to it. Once we're registered the fence has done its job
+	 */
+	static final class TakeoverFenceStage implements MessageStage {
+		private boolean registered = false;
+
+		@Override
+		public String getName() {
+			return "takeover-fence";
+		}
+
+		@Override
+		public boolean accepts(String command) {
+			return command.equals("001") || command.equals("433");
+		}
+
+		@Override
+		public void process(IRCConnection connection, IRCMessage msg) {
+			if (msg.getCommand().equals("001")) {
+				this.registered = true;
+			} else if (!this.registered) {
+				msg.drop();
+				connection.dropUpstream("[ha] nick " + connection.getNickName() + " is still in use, the primary may still be up. Not taking over this network yet");
+			}
+		}
+	}
+
+	/**
+	 * Answers the server's PINGs, they never reach clients
+	 */
+	static final class PingStage implements MessageStage {
+		@Override
+		public String getName() {
+			return "ping";
+		}
+
+		@Override
+		public boolean accepts(String command) {
+			return command.equals("PING");
+		}
+
+		@Override
+		public void process(IRCConnection connection, IRCMessage msg) throws IOException {
+			String[] words = msg.getWords();
+			int dataIndex = (msg.getPrefix() == null ? 1 : 2);
+			connection.sendMesssage("PONG" + (dataIndex < words.length ? " " + words[dataIndex] : ""));
+			msg.drop();
+		}
+	}
+
+	/**
+	 * Drops messages from the nicks in the network's ignore= list
+	 */
+	static final class IgnoreStage implements MessageStage {
+		private final Set<String> nicks = new HashSet<String>();
+
+		IgnoreStage(String[] nicks) {
+			for (String nick : nicks) {
+				this.nicks.add(nick.trim().toLowerCase());
+			}
+		}
+
+		@Override
+		public String getName() {
+			return "ignore";
+		}
+
+		@Override
+		public boolean accepts(String command) {
+			return command.equals("PRIVMSG") || command.equals("NOTICE");
+		}
+
+		@Override
+		public void process(IRCConnection connection, IRCMessage msg) {
+			String sender = msg.getSender();
+			if (sender != null && this.nicks.contains(sender.toLowerCase())) {
+				msg.drop();
+			}
+		}
+	}
+
+	/**
+	 * Keeps track of the channels we're in
+	 */
+	static final class ChannelStage implements MessageStage {
+		@Override
+		public String getName() {
+			return "channels";
+		}
+
+		@Override
+		public boolean accepts(String command) {
+			return command.equals("JOIN") || command.equals("PART") || command.equals("KICK");
+		}
+
+		@Override
+		public void process(IRCConnection connection, IRCMessage msg) {
+			connection.trackChannels(msg.getWords());
+		}
+	}
+
+	/**
+	 * Conversation isn't replayed to every new client, only to the profiles that missed it. WHO replies aren't kept at all
+	 * since they lag us really bad
+	 */
+	static final class ReplayFilterStage implements MessageStage {
+		@Override
+		public String getName() {
+			return "replay-filter";
+		}
+
+		@Override
+		public boolean accepts(String command) {
+			return command.equals("PRIVMSG") || command.equals("352");
+		}
+
+		@Override
+		public void process(IRCConnection connection, IRCMessage msg) {
+			msg.setReplay(false);
+			if (msg.getCommand().equals("352")) {
+				msg.setBuffer(false);
+			}
+		}
+	}
+
+	/**
+	 * Tags messages that mention our nick with "highlight"
+	 */
+	static final class HighlightStage implements MessageStage {
+		@Override
+		public String getName() {
+			return "highlight";
+		}
+
+		@Override
+		public boolean accepts(String command) {
+			return command.equals("PRIVMSG");
+		}
+
+		@Override
+		public void process(IRCConnection connection, IRCMessage msg) {
+			if (msg.getUntaggedLine().contains(connection.getNickName())) {
+				msg.tag("highlight");
+			}
+		}
+	}
+
+	/**
+	 * Lets whoever highlighted us know we're away when no client is connected
+	 */
+	static final class AfkStage implements MessageStage {
+		@Override
+		public String getName() {
+			return "afk";
+		}
+
+		@Override
+		public boolean accepts(String command) {
+			return command.equals("PRIVMSG");
+		}
+
+		@Override
+		public void process(IRCConnection connection, IRCMessage msg) throws IOException {
+			if (msg.hasTag("highlight") && msg.getSender() != null && connection.getServer().getConnectedClients(connection).isEmpty()) {
+				connection.sendMesssage("PRIVMSG " + msg.getSender() + " :" + connection.getUser().getAfkMsg());
+			}
+		}
+	}
+}
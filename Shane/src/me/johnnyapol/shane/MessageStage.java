@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.io.IOException;
+
+/**
+ * One step of a {@link MessagePipeline}. Stages run on the upstream connection's thread for every line they accept,
+ * so they should be quick and must not block on clients.
+ */
+public interface MessageStage {
+
+	/**
+	 * @return a short name for logs and the "pipeline" console command
+	 */
+	String getName();
+
+	/**
+	 * Cheap check that decides whether {@link #process(IRCConnection, IRCMessage)} runs at all
+	 * @param command The line's command or numeric, upper case
+	 */
+	boolean accepts(String command);
+
+	/**
+	 * Looks at, and possibly drops, rewrites, tags or reroutes, a line
+	 * @param connection The network the line came from
+	 */
+	void process(IRCConnection connection, IRCMessage msg) throws IOException;
+}
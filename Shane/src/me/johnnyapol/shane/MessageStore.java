@@ -0,0 +1,746 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Append-only buffer of IRC lines, used for the backlogs we replay to clients.
+ *
+ * Lines are kept as UTF-8 in pooled 4KB slabs. The command is replaced by a SymbolTable id and the prefix and first
+ * parameter (usually the channel or nick) by ids in the store's own StoreSymbols, so a buffered PRIVMSG costs a few bytes of
+ * header plus its text instead of a whole String. Each record is [seq][prefix id][command id][target id][rest length][rest bytes],
+ * all numbers as varints with 0 meaning an absent symbol, where rest is everything after the target including its leading
+ * space. seq is the connection's sequence number of the line, stored relative to the first one in the segment, so readers
+ * can tell exactly which lines a snapshot holds.
+ *
+ * Prefixes and targets are counted by the records using them and freed with the last one, so what the symbols take
+ * follows what the store holds. Trimming and clearing start the store on fresh symbols and leave the old ones to the
+ * cursors still reading the old segments.
+ *
+ * One thread appends (the upstream connection), any number of threads may read through a Cursor at the same time.
+ * Segments are sealed once full and never change after that, which is what lets the appending thread
+ * {@link #compact(BacklogCompactor) compact} them while cursors are still reading the old ones, and lets a compaction
+ * keep the segments earlier ones wrote instead of copying them.
+ */
+public class MessageStore {
+
+	private static final int SLAB_SIZE = 4096;
+	private static final int MAX_POOLED_SLABS = 1024;
+	// sealed segments (128KB) that have to pile up before compacting them
+	private static final int MIN_COMPACT_SEGMENTS = 32;
+
+	private static final Queue<byte[]> slabPool = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger pooledSlabs = new AtomicInteger();
+
+	private static final class Segment {
+		final byte[] slab;
+		// sequence number of the first record, the others store theirs relative to it
+		final long baseSeq;
+		// what the prefix and target ids of the records refer to
+		final StoreSymbols symbols;
+		// record start offsets, replaced by a bigger copy when full
+		int[] offsets = new int[32];
+		int used = 0;
+		// published after the record bytes and offset are written
+		volatile int count = 0;
+
+		Segment(byte[] slab, long baseSeq, StoreSymbols symbols) {
+			this.slab = slab;
+			this.baseSeq = baseSeq;
+			this.symbols = symbols;
+		}
+	}
+
+	private static final Segment[] EMPTY = new Segment[0];
+
+	private volatile Segment[] segments = EMPTY;
+	private volatile int size = 0;
+	private final AtomicInteger readers = new AtomicInteger();
+	
+	// how many of the leading segments are compaction output, and from which sequence number on that output is the churn
+	// the last pass wrote after its last line, which the next pass compacts again along with the newly sealed segments
+	private int compactedSegments = 0;
+	private long compactedTail = 0;
+	// what compaction has removed since the store was last cleared
+	private volatile long compactedLines = 0;
+	private volatile long compactedBytes = 0;
+	
+	// sequence number of the last line appended, only touched by the appending thread
+	private long lastSeq = 0;
+	// lines before this sequence number have been replayed and are skipped by cursors until trim() drops them
+	private volatile long discardBelow = 0;
+
+	// scratch space for encoding the record header, only touched by the appending thread
+	private final byte[] header = new byte[25];
+	// prefix, command and target ids and the start of the rest of the line, same deal
+	private final int[] parsed = new int[4];
+	// what new records' prefix and target ids refer to, only changed by the appending thread
+	private volatile StoreSymbols symbols;
+
+	public MessageStore() {
+		this(new StoreSymbols());
+	}
+
+	private MessageStore(StoreSymbols symbols) {
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Adds a line to the end of the store with the same sequence number as the line before it
+	 * @param line The raw line, without CRLF
+	 */
+	public void append(String line) {
+		this.append(line, this.lastSeq);
+	}
+
+	/**
+	 * Adds a line to the end of the store
+	 * @param line The raw line, without CRLF
+	 * @param seq The line's sequence number, never lower than the last one appended
+	 */
+	public void append(String line, long seq) {
+		this.parse(line);
+		byte[] rest = line.substring(this.parsed[3]).getBytes(StandardCharsets.UTF_8);
+		this.appendRecord(this.parsed[0], this.parsed[1], this.parsed[2], rest, 0, rest.length, seq);
+	}
+
+	/**
+	 * Adds a record whose prefix and target ids already hold a reference in this store's symbols
+	 */
+	private void appendRecord(int prefix, int command, int target, byte[] rest, int restOffset, int restLen, long seq) {
+		int headerLen = 0;
+		headerLen = writeVarInt(this.header, headerLen, prefix + 1);
+		headerLen = writeVarInt(this.header, headerLen, command + 1);
+		headerLen = writeVarInt(this.header, headerLen, target + 1);
+		headerLen = writeVarInt(this.header, headerLen, restLen);
+
+		Segment segment = this.segmentFor(headerLen + restLen + 5, seq);
+		int offset = segment.used;
+		int pos = writeVarInt(segment.slab, offset, (int) (seq - segment.baseSeq));
+		System.arraycopy(this.header, 0, segment.slab, pos, headerLen);
+		System.arraycopy(rest, restOffset, segment.slab, pos + headerLen, restLen);
+		segment.used = pos + headerLen + restLen;
+		this.lastSeq = seq;
+
+		int index = segment.count;
+		if (index == segment.offsets.length) {
+			segment.offsets = Arrays.copyOf(segment.offsets, index * 2);
+		}
+		segment.offsets[index] = offset;
+		segment.count = index + 1;
+		this.size++;
+	}
+
+	/**
+	 * Splits off the prefix, command and target into symbol ids. They're only split when the line would come back out
+	 * byte for byte and the command is a symbol, anything else (message tags, doubled spaces, a command the SymbolTable
+	 * has no room for) is kept whole
+	 */
+	private void parse(String line) {
+		this.parsed[0] = this.parsed[1] = this.parsed[2] = SymbolTable.NONE;
+		this.parsed[3] = 0;
+
+		if (line.startsWith("@")) {
+			return;
+		}
+
+		int pos = 0;
+		int prefixEnd = -1;
+		if (line.startsWith(":")) {
+			prefixEnd = line.indexOf(' ');
+			if (prefixEnd <= 1) {
+				return;
+			}
+			pos = prefixEnd + 1;
+		}
+
+		int commandEnd = line.indexOf(' ', pos);
+		if (commandEnd < 0) {
+			commandEnd = line.length();
+		}
+		if (commandEnd == pos) {
+			return;
+		}
+
+		int targetEnd = -1;
+		if (commandEnd + 1 < line.length() && line.charAt(commandEnd + 1) != ':' && line.charAt(commandEnd + 1) != ' ') {
+			targetEnd = line.indexOf(' ', commandEnd + 1);
+			if (targetEnd < 0) {
+				targetEnd = line.length();
+			}
+		}
+
+		int command = SymbolTable.intern(line.substring(pos, commandEnd));
+		if (command == SymbolTable.NONE) {
+			// the symbol table is full
+			return;
+		}
+
+		this.parsed[0] = (prefixEnd > 0 ? this.symbols.intern(line.substring(0, prefixEnd).getBytes(StandardCharsets.UTF_8)) : SymbolTable.NONE);
+		this.parsed[1] = command;
+		this.parsed[2] = (targetEnd > 0 ? this.symbols.intern(line.substring(commandEnd + 1, targetEnd).getBytes(StandardCharsets.UTF_8)) : SymbolTable.NONE);
+		this.parsed[3] = (targetEnd > 0 ? targetEnd : commandEnd);
+	}
+
+	/**
+	 * @param recordLen The most the record can take, sequence number included
+	 */
+	private Segment segmentFor(int recordLen, long seq) {
+		Segment[] segs = this.segments;
+		if (segs.length > 0) {
+			Segment last = segs[segs.length - 1];
+			if (last.slab.length - last.used >= recordLen && seq - last.baseSeq <= Integer.MAX_VALUE) {
+				return last;
+			}
+		}
+
+		// seal the current segment and start a new one
+		Segment segment = new Segment(recordLen > SLAB_SIZE ? new byte[recordLen] : takeSlab(), seq, this.symbols);
+		Segment[] grown = Arrays.copyOf(segs, segs.length + 1);
+		grown[segs.length] = segment;
+		this.segments = grown;
+		return segment;
+	}
+
+	/**
+	 * @return the sequence number of the newest line, 0 if nothing was ever appended. Only call from the appending thread
+	 */
+	public long getLastSeq() {
+		return this.lastSeq;
+	}
+
+	/**
+	 * Drops every line. Slabs go back to the pool unless a Cursor might still be reading them
+	 */
+	public void clear() {
+		Segment[] old = this.segments;
+		this.segments = EMPTY;
+		this.symbols = new StoreSymbols();
+		this.size = 0;
+		this.compactedSegments = 0;
+		this.compactedTail = 0;
+		this.compactedLines = 0;
+		this.compactedBytes = 0;
+
+		if (this.readers.get() == 0) {
+			for (Segment segment : old) {
+				giveSlab(segment.slab);
+			}
+		}
+	}
+
+	/**
+	 * @return whether enough has been sealed since the last compaction to be worth another
+	 */
+	public boolean needsCompaction() {
+		int sealed = this.segments.length - 1;
+		return sealed - this.compactedSegments >= MIN_COMPACT_SEGMENTS;
+	}
+
+	/**
+	 * Runs the segments sealed since the last compaction through the compactor, everything but the one still being
+	 * appended to. Earlier output is final except for the churn the last pass wrote after its last line, which is still
+	 * waiting for a line that mentions it, so that goes through again ahead of the new lines. A pass costs what was sealed
+	 * since the last one plus that churn, however long the backlog is. Only call from the appending thread. Open cursors
+	 * keep reading the old segments
+	 * @return the number of lines removed
+	 */
+	public int compact(BacklogCompactor compactor) {
+		Segment[] old = this.segments;
+		if (old.length - 1 <= this.compactedSegments) {
+			return 0;
+		}
+		Segment open = old[old.length - 1];
+		long tail = this.compactedTail;
+
+		// the last output segment that starts before the tail may hold some of it, the ones before that are left alone
+		int from = this.compactedSegments;
+		while (from > 0 && old[from - 1].baseSeq >= tail) {
+			from--;
+		}
+		from = Math.max(0, from - 1);
+		Segment[] stretch = Arrays.copyOfRange(old, from, old.length - 1);
+
+		// the output shares our symbols since the segments before it and the open one keep using them
+		MessageStore rebuilt = new MessageStore(this.symbols);
+		long keptBytes = 0;
+		int keptLines;
+		this.readers.addAndGet(2);
+		Cursor kept = new Cursor(stretch, 0);
+		Cursor sealed = new Cursor(stretch, tail);
+		try {
+			while (kept.next() && kept.getSeq() < tail) {
+				kept.copyTo(rebuilt);
+				keptBytes += kept.length() + 2;
+			}
+			keptLines = rebuilt.size;
+			compactor.compact(sealed, rebuilt);
+		} finally {
+			kept.close();
+			sealed.close();
+		}
+
+		int removed = sealed.lines - (rebuilt.size - keptLines);
+		Segment[] segs = new Segment[from + rebuilt.segments.length + 1];
+		System.arraycopy(old, 0, segs, 0, from);
+		System.arraycopy(rebuilt.segments, 0, segs, from, rebuilt.segments.length);
+		segs[segs.length - 1] = open;
+		this.segments = segs;
+		this.size -= removed;
+		this.compactedSegments = segs.length - 1;
+		this.compactedTail = sealed.getSeq();
+		this.compactedLines += removed;
+		this.compactedBytes += sealed.bytes - (rebuilt.lineBytes() - keptBytes);
+
+		release(stretch);
+		if (this.readers.get() == 0) {
+			for (Segment segment : stretch) {
+				giveSlab(segment.slab);
+			}
+			this.symbols.reclaim();
+		}
+		return removed;
+	}
+
+	/**
+	 * @return the lines compaction has removed since the store was last cleared
+	 */
+	public long getCompactedLines() {
+		return this.compactedLines;
+	}
+
+	/**
+	 * @return the bytes of those lines as they would have been sent to a client, CRLF included
+	 */
+	public long getCompactedBytes() {
+		return this.compactedBytes;
+	}
+
+	// bytes of every line as sent, only used on a store nobody else can see yet
+	private long lineBytes() {
+		long bytes = 0;
+		Cursor cursor = this.cursor();
+		try {
+			while (cursor.next()) {
+				bytes += cursor.length() + 2;
+			}
+		} finally {
+			cursor.close();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the number of lines in the store
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return the heap taken by slabs, record indexes and symbols
+	 */
+	public long sizeInBytes() {
+		long bytes = this.symbols.sizeInBytes();
+		for (Segment segment : this.segments) {
+			bytes += segment.slab.length + segment.offsets.length * 4;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Opens a cursor over the lines in the store right now. Lines appended afterwards aren't seen.
+	 * Cursors must be closed so cleared slabs can be reused
+	 */
+	public Cursor cursor() {
+		this.readers.incrementAndGet();
+		return new Cursor(this.segments, this.discardBelow);
+	}
+
+	/**
+	 * Marks every line before a sequence number as gone. Cursors opened from now on skip them, and the appending
+	 * thread frees them with {@link #trim()}. Safe to call from any thread
+	 */
+	public void discardBefore(long seq) {
+		synchronized (this) {
+			if (seq > this.discardBelow) {
+				this.discardBelow = seq;
+			}
+		}
+	}
+
+	/**
+	 * Drops the lines {@link #discardBefore(long)} marked. Only call from the appending thread
+	 * @return true if that left the store empty
+	 */
+	public boolean trim() {
+		long below = this.discardBelow;
+		if (this.size == 0 || below == 0) {
+			return this.size == 0;
+		}
+		if (this.lastSeq < below) {
+			this.clear();
+			return true;
+		}
+
+		Segment[] old = this.segments;
+		MessageStore rebuilt = new MessageStore();
+		Cursor cursor = this.cursor();
+		try {
+			while (cursor.next()) {
+				cursor.copyTo(rebuilt);
+			}
+		} finally {
+			cursor.close();
+		}
+		if (rebuilt.size == this.size) {
+			return false;
+		}
+
+		this.segments = rebuilt.segments;
+		this.symbols = rebuilt.symbols;
+		this.size = rebuilt.size;
+		this.compactedSegments = 0;
+		this.compactedTail = 0;
+		if (this.readers.get() == 0) {
+			for (Segment segment : old) {
+				giveSlab(segment.slab);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Puts lines back into the store where their sequence numbers say they belong, e.g. lines that were queued for a
+	 * client we lost. Only call from the appending thread. Open cursors keep reading the old segments
+	 * @param lines The lines, in sequence order
+	 * @param seqs Their sequence numbers
+	 */
+	public void insert(List<String> lines, List<Long> seqs) {
+		Segment[] old = this.segments;
+		MessageStore rebuilt = new MessageStore();
+		int i = 0;
+		Cursor cursor = this.cursor();
+		try {
+			while (cursor.next()) {
+				for (; i < lines.size() && seqs.get(i) <= cursor.getSeq(); i++) {
+					rebuilt.append(lines.get(i), seqs.get(i));
+				}
+				cursor.copyTo(rebuilt);
+			}
+		} finally {
+			cursor.close();
+		}
+		for (; i < lines.size(); i++) {
+			rebuilt.append(lines.get(i), seqs.get(i));
+		}
+
+		this.segments = rebuilt.segments;
+		this.symbols = rebuilt.symbols;
+		this.size = rebuilt.size;
+		this.lastSeq = Math.max(this.lastSeq, rebuilt.lastSeq);
+		this.compactedSegments = 0;
+		this.compactedTail = 0;
+		if (this.readers.get() == 0) {
+			for (Segment segment : old) {
+				giveSlab(segment.slab);
+			}
+		}
+	}
+
+	/**
+	 * Read-only view of a store, walked front to back with next()
+	 */
+	public final class Cursor {
+		private final Segment[] segs;
+		private final int lastCount;
+		private final long skipBelow;
+		private int seg = 0;
+		private int index = -1;
+		private boolean closed = false;
+
+		// the decoded record we're sitting on
+		private int body, prefix, command, target, restOffset, restLen;
+		private long seq;
+		// lines walked so far and their bytes as sent, CRLF included
+		private int lines = 0;
+		private long bytes = 0;
+
+		private Cursor(Segment[] segs, long skipBelow) {
+			// older segments are sealed, only the last one can still be growing
+			this(segs, skipBelow, (segs.length > 0 ? segs[segs.length - 1].count : 0));
+		}
+
+		private Cursor(Segment[] segs, long skipBelow, int lastCount) {
+			this.segs = segs;
+			this.skipBelow = skipBelow;
+			this.lastCount = lastCount;
+		}
+
+		private int countOf(int s) {
+			return (s == this.segs.length - 1 ? this.lastCount : this.segs[s].count);
+		}
+
+		/**
+		 * Moves to the next line
+		 * @return false once there are no more lines
+		 */
+		public boolean next() {
+			do {
+				this.index++;
+				while (this.seg < this.segs.length && this.index >= this.countOf(this.seg)) {
+					this.seg++;
+					this.index = 0;
+				}
+				if (this.seg >= this.segs.length) {
+					return false;
+				}
+
+				long v = readVarInt(this.segs[this.seg].slab, this.segs[this.seg].offsets[this.index]);
+				this.seq = this.segs[this.seg].baseSeq + (int) v;
+				this.body = (int) (v >>> 32);
+			} while (this.seq < this.skipBelow);
+
+			byte[] slab = this.segs[this.seg].slab;
+			int pos = this.body;
+
+			long v = readVarInt(slab, pos);
+			this.prefix = (int) v - 1;
+			pos = (int) (v >>> 32);
+			v = readVarInt(slab, pos);
+			this.command = (int) v - 1;
+			pos = (int) (v >>> 32);
+			v = readVarInt(slab, pos);
+			this.target = (int) v - 1;
+			pos = (int) (v >>> 32);
+			v = readVarInt(slab, pos);
+			this.restLen = (int) v;
+			this.restOffset = (int) (v >>> 32);
+			this.lines++;
+			this.bytes += this.length() + 2;
+			return true;
+		}
+
+		/**
+		 * Opens another cursor over the same lines as this one, from the first. It has to be closed as well
+		 */
+		public Cursor copy() {
+			MessageStore.this.readers.incrementAndGet();
+			return new Cursor(this.segs, this.skipBelow, this.lastCount);
+		}
+
+		/**
+		 * @return the current line's sequence number, or the last line's once next() has returned false
+		 */
+		public long getSeq() {
+			return this.seq;
+		}
+
+		/**
+		 * @return the current line's command as a SymbolTable id, NONE if it isn't a symbol
+		 */
+		public int getCommand() {
+			if (this.command != SymbolTable.NONE || this.prefix != SymbolTable.NONE || this.target != SymbolTable.NONE) {
+				return this.command;
+			}
+
+			// stored whole, find the command past the tags and prefix
+			byte[] slab = this.segs[this.seg].slab;
+			int pos = this.restOffset, end = this.restOffset + this.restLen;
+			while (pos < end && (slab[pos] == '@' || slab[pos] == ':')) {
+				while (pos < end && slab[pos] != ' ') {
+					pos++;
+				}
+				pos++;
+			}
+			int start = pos;
+			while (pos < end && slab[pos] != ' ') {
+				pos++;
+			}
+			return (pos > start ? SymbolTable.lookup(new String(slab, start, pos - start, StandardCharsets.UTF_8)) : SymbolTable.NONE);
+		}
+
+		/**
+		 * @return the length of the current line in bytes, without CRLF
+		 */
+		public int length() {
+			StoreSymbols symbols = this.segs[this.seg].symbols;
+			int len = this.restLen;
+			if (this.prefix != SymbolTable.NONE) {
+				len += symbols.get(this.prefix).length + 1;
+			}
+			if (this.command != SymbolTable.NONE) {
+				len += SymbolTable.bytes(this.command).length;
+			}
+			if (this.target != SymbolTable.NONE) {
+				len += symbols.get(this.target).length + 1;
+			}
+			return len;
+		}
+
+		/**
+		 * @return the number of lines walked so far
+		 */
+		public int getLines() {
+			return this.lines;
+		}
+
+		/**
+		 * @return the bytes of the lines walked so far as sent to a client, CRLF included
+		 */
+		public long getBytes() {
+			return this.bytes;
+		}
+
+		/**
+		 * Appends the current line to another store without building a String
+		 */
+		public void copyTo(MessageStore out) {
+			out.appendRecord(this.copySymbol(this.prefix, out), this.command, this.copySymbol(this.target, out), this.segs[this.seg].slab, this.restOffset, this.restLen, this.seq);
+		}
+
+		// a reference on the same prefix or target in another store's symbols
+		private int copySymbol(int id, MessageStore out) {
+			if (id == SymbolTable.NONE) {
+				return id;
+			}
+			StoreSymbols symbols = this.segs[this.seg].symbols;
+			if (out.symbols == symbols) {
+				symbols.retain(id);
+				return id;
+			}
+			return out.symbols.intern(symbols.get(id));
+		}
+
+		/**
+		 * Writes the current line (without CRLF) straight from the slab and symbol tables, no String is built
+		 */
+		public void writeTo(OutputStream out) throws IOException {
+			StoreSymbols symbols = this.segs[this.seg].symbols;
+			if (this.prefix != SymbolTable.NONE) {
+				out.write(symbols.get(this.prefix));
+				out.write(' ');
+			}
+			if (this.command != SymbolTable.NONE) {
+				out.write(SymbolTable.bytes(this.command));
+			}
+			if (this.target != SymbolTable.NONE) {
+				out.write(' ');
+				out.write(symbols.get(this.target));
+			}
+			out.write(this.segs[this.seg].slab, this.restOffset, this.restLen);
+		}
+
+		/**
+		 * @return the current line as a String
+		 */
+		@Override
+		public String toString() {
+			StoreSymbols symbols = this.segs[this.seg].symbols;
+			StringBuilder sb = new StringBuilder();
+			if (this.prefix != SymbolTable.NONE) {
+				sb.append(new String(symbols.get(this.prefix), StandardCharsets.UTF_8)).append(' ');
+			}
+			if (this.command != SymbolTable.NONE) {
+				sb.append(SymbolTable.get(this.command));
+			}
+			if (this.target != SymbolTable.NONE) {
+				sb.append(' ').append(new String(symbols.get(this.target), StandardCharsets.UTF_8));
+			}
+			sb.append(new String(this.segs[this.seg].slab, this.restOffset, this.restLen, StandardCharsets.UTF_8));
+			return sb.toString();
+		}
+
+		public void close() {
+			if (!this.closed) {
+				this.closed = true;
+				MessageStore.this.readers.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Drops the references the records in some segments hold on their prefixes and targets
+	 */
+	private static void release(Segment[] segs) {
+		for (Segment segment : segs) {
+			byte[] slab = segment.slab;
+			for (int i = 0; i < segment.count; i++) {
+				// skip the sequence number
+				long v = readVarInt(slab, segment.offsets[i]);
+				v = readVarInt(slab, (int) (v >>> 32));
+				int prefix = (int) v - 1;
+				v = readVarInt(slab, (int) (v >>> 32));
+				v = readVarInt(slab, (int) (v >>> 32));
+				int target = (int) v - 1;
+				if (prefix != SymbolTable.NONE) {
+					segment.symbols.release(prefix);
+				}
+				if (target != SymbolTable.NONE) {
+					segment.symbols.release(target);
+				}
+			}
+		}
+	}
+
+	private static byte[] takeSlab() {
+		byte[] slab = slabPool.poll();
+		if (slab == null) {
+			return new byte[SLAB_SIZE];
+		}
+		pooledSlabs.decrementAndGet();
+		return slab;
+	}
+
+	private static void giveSlab(byte[] slab) {
+		if (slab.length == SLAB_SIZE && pooledSlabs.incrementAndGet() <= MAX_POOLED_SLABS) {
+			slabPool.add(slab);
+		} else if (slab.length == SLAB_SIZE) {
+			pooledSlabs.decrementAndGet();
+		}
+	}
+
+	private static int writeVarInt(byte[] buf, int pos, int value) {
+		while ((value & ~0x7F) != 0) {
+			buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * @return the value in the low 32 bits and the position after it in the high 32 bits
+	 */
+	private static long readVarInt(byte[] buf, int pos) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = buf[pos++];
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return ((long) pos << 32) | (value & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The one selector every upstream and client socket in the process is registered with. Its thread only waits for sockets
+ * to become readable or writable and tells their owners, who do the actual reading and writing on the reader pool
+ * (see {@link Strand}). An idle connection costs its buffers and a selection key, not a thread.
+ *
+ * Interest is one-shot: once an event fires it's taken out of the key's interest set, and the owner asks for it again
+ * with {@link #watch(SelectionKey, int)} when it's ready for more, so a busy socket can't be picked up twice.
+ */
+public final class Reactor implements Runnable {
+
+	private static final Logger log = Logger.getLogger("Shane");
+
+	/**
+	 * Told which of the events it asked for have fired. Runs on the reactor thread, so it must not block
+	 */
+	public interface Listener {
+		void ready(int ops);
+	}
+
+	private static Reactor instance = null;
+
+	private final Selector selector;
+	// registrations wait here for the reactor thread, registering from another thread would block until select() returns
+	private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+	private volatile Thread thread = null;
+
+	private Reactor() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	private static synchronized Reactor get() throws IOException {
+		if (instance == null) {
+			instance = new Reactor();
+			Thread t = SharedResources.newThread(instance, "Reactor");
+			t.setDaemon(true);
+			instance.thread = t;
+			t.start();
+		}
+		return instance;
+	}
+
+	/**
+	 * Registers a channel, switching it to non-blocking mode. Nothing is watched until {@link #watch(SelectionKey, int)} is called
+	 * @return the channel's key, closing the channel cancels it
+	 */
+	public static SelectionKey register(final SelectableChannel channel, final Listener listener) throws IOException {
+		final Reactor reactor = get();
+		channel.configureBlocking(false);
+
+		final CompletableFuture<SelectionKey> key = new CompletableFuture<SelectionKey>();
+		reactor.pending.add(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					key.complete(channel.register(reactor.selector, 0, listener));
+				} catch (ClosedChannelException e) {
+					key.completeExceptionally(e);
+				}
+			}
+		});
+		reactor.selector.wakeup();
+
+		try {
+			return key.get();
+		} catch (ExecutionException e) {
+			throw (e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while registering a channel", e);
+		}
+	}
+
+	/**
+	 * Asks to be told once the key's channel is ready for the given operations. Asking for something already asked for is free
+	 */
+	public static void watch(SelectionKey key, int ops) {
+		try {
+			synchronized (key) {
+				if ((key.interestOps() & ops) == ops) {
+					return;
+				}
+				key.interestOps(key.interestOps() | ops);
+			}
+		} catch (CancelledKeyException e) {
+			// the channel was closed, its owner finds out when it next uses it
+			return;
+		}
+		if (Thread.currentThread() != instance.thread) {
+			key.selector().wakeup();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				this.selector.select();
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "[reactor] select failed", e);
+				continue;
+			}
+
+			Runnable registration;
+			while ((registration = this.pending.poll()) != null) {
+				registration.run();
+			}
+
+			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				int ops;
+				try {
+					synchronized (key) {
+						ops = key.readyOps() & key.interestOps();
+						key.interestOps(key.interestOps() & ~ops);
+					}
+				} catch (CancelledKeyException e) {
+					continue;
+				}
+				if (ops == 0) {
+					continue;
+				}
+
+				try {
+					((Listener) key.attachment()).ready(ops);
+				} catch (RuntimeException e) {
+					log.log(Level.SEVERE, "[reactor] Throwable in a listener", e);
+				}
+			}
+		}
+	}
+}
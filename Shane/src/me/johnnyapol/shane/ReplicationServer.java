@@ -0,0 +1,321 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The primary's side of high availability: a standby bouncer connects here, gets a snapshot of every network's
+ * profile backlogs and joined channels, then a live stream of changes so it can take over if we die.
+ *
+ * The protocol is one event per line:
+ * <pre>
+ * HELLO secret          standby -&gt; primary, first line
+ * SNAPSHOT              a full snapshot follows, drop the replica
+ * P id nick             profile created
+ * M id nick seq line    line buffered for a profile, lines put back out of order go where seq says
+ * C id nick seq         lines of a profile before seq dropped (replayed to a client)
+ * J id channel          we joined a channel
+ * L id channel          we left a channel
+ * H                     heartbeat, sent when there's nothing else to say for a second
+ * </pre>
+ * where id is the connection's user/network id. Events are queued and written on the standby's own thread,
+ * so a slow standby never stalls an upstream connection. The snapshot is taken under each connection's backlog lock
+ * but only as cursors and copies, it's written after the lock is let go. A standby that falls too far behind, or whose
+ * writes get stuck for WRITE_TIMEOUT_MS, is dropped and resyncs from a new snapshot.
+ *
+ * Replication is asynchronous on purpose: nothing waits for the standby to confirm an event, so lines still queued
+ * here (normally well under a second's worth) are lost if the primary dies. Waiting for acknowledgements would put the
+ * standby's round trip on every upstream line.
+ *
+ * Everything is sent in plain text, every user's backlog included, so bind ha-port to an address only the standby can reach.
+ */
+public class ReplicationServer implements Runnable {
+
+	public static final long HEARTBEAT_MS = 1000;
+	private static final int MAX_QUEUED = 1 << 20;
+	private static final int HELLO_TIMEOUT_MS = 10000;
+	private static final long WRITE_TIMEOUT_MS = 10000;
+
+	private static final Logger log = Logger.getLogger("Shane");
+
+	private final int port;
+	private final String bindAddress;
+	private final String secret;
+	private final List<IRCConnection> connections;
+
+	private volatile Standby standby = null;
+	private volatile ServerSocket serverSocket = null;
+	private volatile boolean isRunning = true;
+
+	/**
+	 * @param bindAddress The address to listen on, null for every interface
+	 */
+	public ReplicationServer(int port, String bindAddress, String secret, List<IRCConnection> connections) {
+		this.port = port;
+		this.bindAddress = bindAddress;
+		this.secret = secret;
+		this.connections = connections;
+	}
+
+	/**
+	 * A connected standby bouncer
+	 */
+	final class Standby implements Runnable {
+		private final Socket socket;
+		private final OutputStream out;
+		private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>(MAX_QUEUED);
+		private final Set<IRCConnection> subscribed = ConcurrentHashMap.newKeySet();
+		private volatile boolean closed = false;
+		// when the write in progress started, 0 if we aren't writing
+		private volatile long writingSince = 0;
+		private final ScheduledFuture<?> writeCheck;
+
+		Standby(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+			// sockets have no write timeout, a standby that stops reading would otherwise hold its writer forever
+			this.writeCheck = SharedResources.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					long since = Standby.this.writingSince;
+					if (since != 0 && System.nanoTime() - since > TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT_MS)) {
+						log.warning("[ha] standby " + Standby.this.socket.getRemoteSocketAddress() + " stopped reading, dropping it");
+						Standby.this.close();
+					}
+				}
+			}, 1, TimeUnit.SECONDS);
+		}
+
+		/**
+		 * Writes an event immediately, only used for the snapshot before the writer thread starts
+		 */
+		void write(String event) throws IOException {
+			this.writingSince = System.nanoTime();
+			try {
+				this.out.write((event + "\r\n").getBytes(StandardCharsets.UTF_8));
+			} finally {
+				this.writingSince = 0;
+			}
+		}
+
+		void flush() throws IOException {
+			this.writingSince = System.nanoTime();
+			try {
+				this.out.flush();
+			} finally {
+				this.writingSince = 0;
+			}
+		}
+
+		/**
+		 * Starts streaming a connection's events, call with the connection's backlog lock held right after snapshotting it.
+		 * Events queue up until the writer thread starts, after the snapshot has been written
+		 */
+		void subscribe(IRCConnection connection) {
+			this.subscribed.add(connection);
+		}
+
+		void send(IRCConnection connection, String event) {
+			if (this.closed || !this.subscribed.contains(connection)) {
+				return;
+			}
+			if (!this.queue.offer(event)) {
+				log.warning("[ha] standby " + this.socket.getRemoteSocketAddress() + " fell too far behind, dropping it");
+				this.close();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				this.flush();
+				while (!this.closed) {
+					String event = this.queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+					if (event == null) {
+						this.write("H");
+					}
+					// batch whatever else is waiting into one flush
+					while (event != null) {
+						this.write(event);
+						event = this.queue.poll();
+					}
+					this.flush();
+				}
+			} catch (IOException e) {
+				if (!this.closed) {
+					log.log(Level.WARNING, "[ha] lost connection to standby " + this.socket.getRemoteSocketAddress(), e);
+				}
+			} catch (InterruptedException e) {
+				// shutting down
+			}
+			this.close();
+		}
+
+		void close() {
+			this.closed = true;
+			this.writeCheck.cancel(false);
+			this.queue.clear();
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+				// ignored
+			}
+			if (ReplicationServer.this.standby == this) {
+				ReplicationServer.this.standby = null;
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			this.serverSocket = new ServerSocket(this.port, 50, (this.bindAddress == null ? null : InetAddress.getByName(this.bindAddress)));
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "[ha] failed to listen on port " + this.port + ", no standby can connect", e);
+			return;
+		}
+		log.info("[ha] waiting for a standby on " + this.serverSocket.getLocalSocketAddress());
+
+		while (this.isRunning) {
+			Socket s;
+			try {
+				s = this.serverSocket.accept();
+			} catch (IOException e) {
+				if (this.isRunning) {
+					log.log(Level.SEVERE, "[ha] IOException while accepting a standby", e);
+				}
+				continue;
+			}
+
+			try {
+				this.attach(s);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "[ha] failed to sync standby " + s.getRemoteSocketAddress(), e);
+				try {
+					s.close();
+				} catch (IOException e1) {
+					// ignored
+				}
+			}
+		}
+	}
+
+	private void attach(Socket s) throws IOException {
+		s.setTcpNoDelay(true);
+		s.setSoTimeout(HELLO_TIMEOUT_MS);
+
+		String hello = new LineReader(s.getInputStream()).readLine();
+		if (hello == null || !hello.equals("HELLO " + this.secret)) {
+			log.warning("[ha] rejected standby " + s.getRemoteSocketAddress() + ", bad secret");
+			s.close();
+			return;
+		}
+		s.setSoTimeout(0);
+
+		// only one standby at a time, a new one replaces the old
+		Standby old = this.standby;
+		if (old != null) {
+			old.close();
+		}
+
+		Standby standby = new Standby(s);
+		long began = System.nanoTime();
+		// events queue up from here on, but only for connections that have already been snapshotted
+		this.standby = standby;
+		try {
+			standby.write("SNAPSHOT");
+			for (IRCConnection connection : this.connections) {
+				List<String> channels = new ArrayList<String>();
+				List<String> profiles = new ArrayList<String>();
+				List<MessageStore.Cursor> cursors = new ArrayList<MessageStore.Cursor>();
+				// only takes the lock long enough to copy, the writing happens without it
+				connection.snapshotTo(standby, channels, profiles, cursors);
+				try {
+					String key = connection.getReplicationKey();
+					for (String channel : channels) {
+						standby.write("J " + key + " " + channel);
+					}
+					for (int i = 0; i < profiles.size(); i++) {
+						standby.write("P " + key + " " + profiles.get(i));
+						MessageStore.Cursor cursor = cursors.get(i);
+						while (cursor.next()) {
+							standby.write("M " + key + " " + profiles.get(i) + " " + cursor.getSeq() + " " + cursor);
+						}
+					}
+				} finally {
+					for (MessageStore.Cursor cursor : cursors) {
+						cursor.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			standby.close();
+			throw e;
+		}
+		SharedResources.newThread(standby, "Standby-" + s.getRemoteSocketAddress()).start();
+
+		log.info("[ha] standby " + s.getRemoteSocketAddress() + " synced in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - began) + "ms");
+	}
+
+	/**
+	 * Forwards an event about a connection to the standby, if there is one. Callers hold the connection's backlog lock so
+	 * events are queued in the same order they were applied
+	 */
+	void publish(IRCConnection connection, String event) {
+		Standby s = this.standby;
+		if (s != null) {
+			s.send(connection, event);
+		}
+	}
+
+	/**
+	 * @return whether a standby is currently connected
+	 */
+	public boolean hasStandby() {
+		return this.standby != null;
+	}
+
+	public void stop() {
+		this.isRunning = false;
+		Standby s = this.standby;
+		if (s != null) {
+			s.close();
+		}
+		if (this.serverSocket != null) {
+			try {
+				this.serverSocket.close();
+			} catch (IOException e) {
+				// ignored
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves host names off the calling thread and caches the answers.
+ * Entries live for the JVM's own DNS cache ttl (networkaddress.cache.ttl, negative answers networkaddress.cache.negative.ttl),
+ * so an operator tuning those gets the same behaviour here. Concurrent lookups of the same host share a single query.
+ *
+ * InetAddress doesn't tell us the ttl of the records it found, so every answer is kept for that one configured ttl however long
+ * the record itself says it's good for. The lookups also go through the JVM's own cache, which this class can't reach:
+ * {@link #invalidate(String)} only forgets our entry, and the next lookup may still be answered by the JVM until its ttl runs out.
+ */
+public final class Resolver {
+
+	private static final long DEFAULT_TTL = 30;
+	private static final long DEFAULT_NEGATIVE_TTL = 10;
+
+	private static final long ttlNanos = readTtl("networkaddress.cache.ttl", DEFAULT_TTL);
+	private static final long negativeTtlNanos = readTtl("networkaddress.cache.negative.ttl", DEFAULT_NEGATIVE_TTL);
+
+	private static final Map<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+	private static class Entry {
+		final CompletableFuture<InetAddress[]> result;
+		volatile long expiresAt; // only meaningful once the lookup finishes
+
+		Entry(CompletableFuture<InetAddress[]> result) {
+			this.result = result;
+		}
+
+		boolean isExpired(long now) {
+			return this.result.isDone() && now - this.expiresAt >= 0;
+		}
+	}
+
+	private Resolver() {
+	}
+
+	/**
+	 * Looks up every address of a host. A cached answer is returned immediately, otherwise the lookup runs on the shared worker pool
+	 * @param host The host name or address literal
+	 * @return a future completing with the addresses, or exceptionally with an UnknownHostException
+	 */
+	public static CompletableFuture<InetAddress[]> resolve(final String host) {
+		long now = System.nanoTime();
+		Entry entry = cache.get(host);
+
+		if (entry != null && !entry.isExpired(now)) {
+			return entry.result;
+		}
+
+		final Entry fresh = new Entry(new CompletableFuture<InetAddress[]>());
+		if (entry == null ? cache.putIfAbsent(host, fresh) != null : !cache.replace(host, entry, fresh)) {
+			// someone else started a lookup first, share theirs
+			return resolve(host);
+		}
+
+		SharedResources.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					InetAddress[] addresses = InetAddress.getAllByName(host);
+					fresh.expiresAt = System.nanoTime() + ttlNanos;
+					fresh.result.complete(addresses);
+				} catch (UnknownHostException e) {
+					fresh.expiresAt = System.nanoTime() + negativeTtlNanos;
+					fresh.result.completeExceptionally(e);
+				} catch (Throwable t) {
+					// don't cache anything we can't explain
+					cache.remove(host, fresh);
+					fresh.result.completeExceptionally(t);
+				}
+			}
+		});
+		return fresh.result;
+	}
+
+	/**
+	 * Drops a cached answer, e.g. after every address it returned failed to connect. This doesn't force a fresh query,
+	 * the JVM's own cache may still answer the next lookup with the same addresses
+	 */
+	public static void invalidate(String host) {
+		Entry entry = cache.get(host);
+		if (entry != null && entry.result.isDone()) {
+			cache.remove(host, entry);
+		}
+	}
+
+	private static long readTtl(String property, long def) {
+		long seconds = def;
+		try {
+			String value = Security.getProperty(property);
+			if (value != null) {
+				seconds = Long.parseLong(value.trim());
+			}
+		} catch (NumberFormatException e) {
+			// fall back to the default
+		}
+		// -1 means cache forever
+		return (seconds < 0 ? TimeUnit.DAYS.toNanos(365) : TimeUnit.SECONDS.toNanos(seconds));
+	}
+}
@@ -23,6 +23,9 @@ public class ServerConfig {
 	private String nick;
 	private String[] channels = new String[] { };
 	private boolean useSSL = false;
+	private String user = UserConfig.DEFAULT_USER;
+	private String[] ignored = new String[] { };
+	private String[] compactProfiles = new String[] { };
 	
 	private final static Logger log = Logger.getLogger("Shane");
 	
@@ -83,6 +86,21 @@ public class ServerConfig {
 				continue;
 			}
 			
+			if (key.equalsIgnoreCase("user")) {
+				this.user = split[1];
+				continue;
+			}
+			
+			if (key.equalsIgnoreCase("ignore")) {
+				this.ignored = split[1].split(",");
+				continue;
+			}
+			
+			if (key.equalsIgnoreCase("compact-profiles")) {
+				this.compactProfiles = split[1].split(",");
+				continue;
+			}
+			
 			log.warning("[config] invalid server config line: " + line);
 			continue;
 		}
@@ -111,4 +129,25 @@ public class ServerConfig {
 	public boolean getUseSSL() {
 		return this.useSSL;
 	}
+	
+	/**
+	 * @return the nicks whose messages are dropped before reaching clients or backlogs
+	 */
+	public String[] getIgnored() {
+		return this.ignored;
+	}
+	
+	/**
+	 * @return the profiles whose backlog gets JOIN/PART/QUIT/NICK churn compacted, "*" for all of them
+	 */
+	public String[] getCompactProfiles() {
+		return this.compactProfiles;
+	}
+
+	/**
+	 * @return the name of the bouncer user that owns this network
+	 */
+	public String getUser() {
+		return this.user;
+	}
 }
\ No newline at end of file
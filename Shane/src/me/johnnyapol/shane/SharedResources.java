@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads and timers shared by every user and network hosted in this process.
+ * No connection has a thread of its own: sockets are watched by the {@link Reactor} and read and written on a small pool
+ * of reader threads, anything that just needs to wait (reconnect back-off, etc) goes through the shared scheduler
+ * instead of parking a thread in Thread.sleep(), and blocking jobs go to the worker pool
+ */
+public final class SharedResources {
+
+	// none of our threads recurse or sit on big frames, 256k is plenty
+	public static final long STACK_SIZE = 256 * 1024;
+	// the reader pool only ever runs non-blocking work, so it doesn't need more threads than cores
+	public static final int READERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	private static final long WORKER_KEEP_ALIVE_SECONDS = 10;
+
+	private static final AtomicInteger liveThreads = new AtomicInteger();
+
+	private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = SharedResources.newThread(r, "Scheduler-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// for short blocking jobs (dns lookups, connect attempts, replays) that shouldn't tie up the caller
+	private static final ExecutorService workers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = SharedResources.newThread(r, "Worker-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// reads, parses and writes for every connection, fed by the reactor, see Strand
+	private static final ExecutorService readers = Executors.newFixedThreadPool(READERS, new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = SharedResources.newThread(r, "Reader-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private SharedResources() {
+	}
+
+	/**
+	 * Creates (but does not start) a thread with the shared small stack size
+	 * @param r The task to run
+	 * @param name The name of the thread
+	 * @return the new thread
+	 */
+	public static Thread newThread(final Runnable r, String name) {
+		return new Thread(null, new Runnable() {
+			@Override
+			public void run() {
+				liveThreads.incrementAndGet();
+				try {
+					r.run();
+				} finally {
+					liveThreads.decrementAndGet();
+				}
+			}
+		}, name, STACK_SIZE);
+	}
+
+	/**
+	 * Runs a task once after the given delay on the shared scheduler. Tasks should be short, anything that blocks
+	 * for long should hand off to its own thread
+	 */
+	public static ScheduledFuture<?> schedule(Runnable r, long delay, TimeUnit unit) {
+		return scheduler.schedule(r, delay, unit);
+	}
+
+	/**
+	 * Runs a task every period on the shared scheduler, same rules as {@link #schedule(Runnable, long, TimeUnit)}
+	 */
+	public static ScheduledFuture<?> scheduleAtFixedRate(Runnable r, long period, TimeUnit unit) {
+		return scheduler.scheduleAtFixedRate(r, period, period, unit);
+	}
+
+	/**
+	 * Runs a blocking task on the shared worker pool. Idle workers are reclaimed after WORKER_KEEP_ALIVE_SECONDS
+	 */
+	public static void execute(Runnable r) {
+		workers.execute(r);
+	}
+
+	/**
+	 * Runs a task on the reader pool. It must never block, every connection in the process shares these threads
+	 */
+	public static void dispatch(Runnable r) {
+		readers.execute(r);
+	}
+
+	/**
+	 * @return the number of threads created through {@link #newThread(Runnable, String)} that are still running
+	 */
+	public static int getLiveThreads() {
+		return liveThreads.get();
+	}
+
+	public static void shutdown() {
+		scheduler.shutdownNow();
+		workers.shutdownNow();
+		readers.shutdownNow();
+	}
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The standby's side of high availability: keeps a warm copy of the primary's profile backlogs and joined channels,
+ * see {@link ReplicationServer} for the protocol. Once the primary has gone quiet for the configured timeout
+ * (no events or heartbeats, and it can't be reached again) the takeover task runs and we start serving ourselves.
+ *
+ * We never take over from a primary we haven't synced with at least once, so starting the standby first is harmless.
+ */
+public class StandbyReplica implements Runnable {
+
+	private static final long RETRY_MS = 1000;
+
+	private static final Logger log = Logger.getLogger("Shane");
+
+	private final String host;
+	private final int port;
+	private final String secret;
+	private final long timeoutMs;
+	private final Runnable takeover;
+
+	// connection id -> profile nick -> backlog
+	private final Map<String, Map<String, MessageStore>> missed = new ConcurrentHashMap<String, Map<String, MessageStore>>();
+	// connection id -> channels we're in
+	private final Map<String, Set<String>> channels = new ConcurrentHashMap<String, Set<String>>();
+
+	// lines the primary put back into a backlog out of order, inserted together once the run of them ends
+	private MessageStore inserting = null;
+	private final List<String> insertLines = new ArrayList<String>();
+	private final List<Long> insertSeqs = new ArrayList<Long>();
+
+	private volatile boolean isRunning = true;
+	private volatile long lastHeard = 0;
+	private volatile boolean tookOver = false;
+
+	/**
+	 * @param host The primary's address
+	 * @param port The primary's ha-port
+	 * @param secret The shared ha-secret
+	 * @param timeoutMs How long the primary may stay silent before we take over
+	 * @param takeover Run once, on this replica's thread, when we take over
+	 */
+	public StandbyReplica(String host, int port, String secret, long timeoutMs, Runnable takeover) {
+		this.host = host;
+		this.port = port;
+		this.secret = secret;
+		this.timeoutMs = timeoutMs;
+		this.takeover = takeover;
+	}
+
+	@Override
+	public void run() {
+		while (this.isRunning) {
+			try {
+				this.follow();
+			} catch (IOException e) {
+				log.log(Level.WARNING, "[ha] lost the primary at " + this.host + ":" + this.port + ": " + e.getMessage());
+			}
+
+			if (this.lastHeard != 0 && System.nanoTime() - this.lastHeard >= TimeUnit.MILLISECONDS.toNanos(this.timeoutMs)) {
+				log.warning("[ha] primary silent for " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.lastHeard) + "ms, taking over");
+				this.isRunning = false;
+				this.tookOver = true;
+				this.takeover.run();
+				return;
+			}
+
+			try {
+				Thread.sleep(RETRY_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void follow() throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(this.host, this.port), (int) this.timeoutMs);
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout((int) this.timeoutMs);
+
+			OutputStream out = socket.getOutputStream();
+			out.write(("HELLO " + this.secret + "\r\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+
+			LineReader reader = new LineReader(socket.getInputStream());
+			String line;
+			while (this.isRunning && (line = reader.readLine()) != null) {
+				this.lastHeard = System.nanoTime();
+				this.apply(line);
+			}
+		} finally {
+			this.finishInsert();
+			socket.close();
+		}
+	}
+
+	private void apply(String event) {
+		if (event.equals("H")) {
+			return;
+		}
+
+		if (event.equals("SNAPSHOT")) {
+			this.finishInsert();
+			this.missed.clear();
+			this.channels.clear();
+			log.info("[ha] receiving snapshot from primary " + this.host + ":" + this.port);
+			return;
+		}
+
+		String[] split = event.split(" ", 5);
+		if (split.length < 3) {
+			log.warning("[ha] unrecognized event: " + event);
+			return;
+		}
+		String id = split[1];
+
+		try {
+			if (split[0].equals("M") && split.length == 5) {
+				this.applyLine(id, split[2], Long.parseLong(split[3]), split[4]);
+				return;
+			}
+			this.finishInsert();
+
+			switch (split[0]) {
+				case "P":
+					this.profiles(id).putIfAbsent(split[2], new MessageStore());
+					break;
+				case "C": {
+					MessageStore store = this.profiles(id).get(split[2]);
+					if (store != null && split.length == 4) {
+						store.discardBefore(Long.parseLong(split[3]));
+						store.trim();
+					}
+					break;
+				}
+				case "J":
+					this.channels(id).add(split[2]);
+					break;
+				case "L":
+					this.channels(id).remove(split[2]);
+					break;
+				default:
+					log.warning("[ha] unrecognized event: " + event);
+			}
+		} catch (NumberFormatException e) {
+			log.warning("[ha] unrecognized event: " + event);
+		}
+	}
+
+	/**
+	 * Appends a buffered line, or queues it for {@link #finishInsert()} if it belongs before the end of the backlog
+	 */
+	private void applyLine(String id, String nick, long seq, String line) {
+		MessageStore store = this.profiles(id).get(nick);
+		if (store == null) {
+			store = new MessageStore();
+			this.profiles(id).put(nick, store);
+		}
+
+		if (store != this.inserting) {
+			this.finishInsert();
+		}
+		if (store.size() > 0 && seq < store.getLastSeq()) {
+			this.inserting = store;
+			this.insertLines.add(line);
+			this.insertSeqs.add(seq);
+			return;
+		}
+		this.finishInsert();
+		store.append(line, seq);
+	}
+
+	private void finishInsert() {
+		if (this.inserting == null) {
+			return;
+		}
+		this.inserting.insert(this.insertLines, this.insertSeqs);
+		this.inserting = null;
+		this.insertLines.clear();
+		this.insertSeqs.clear();
+	}
+
+	private Map<String, MessageStore> profiles(String id) {
+		Map<String, MessageStore> profiles = this.missed.get(id);
+		if (profiles == null) {
+			profiles = new ConcurrentHashMap<String, MessageStore>();
+			this.missed.put(id, profiles);
+		}
+		return profiles;
+	}
+
+	private Set<String> channels(String id) {
+		Set<String> joined = this.channels.get(id);
+		if (joined == null) {
+			joined = ConcurrentHashMap.newKeySet();
+			this.channels.put(id, joined);
+		}
+		return joined;
+	}
+
+	/**
+	 * @return the replicated profile backlogs of a connection
+	 */
+	public Map<String, MessageStore> getMissedMessages(String id) {
+		Map<String, MessageStore> profiles = this.missed.get(id);
+		return (profiles == null ? Collections.<String, MessageStore>emptyMap() : profiles);
+	}
+
+	/**
+	 * @return the channels the primary had joined on a connection
+	 */
+	public Set<String> getChannels(String id) {
+		Set<String> joined = this.channels.get(id);
+		return (joined == null ? Collections.<String>emptySet() : joined);
+	}
+
+	/**
+	 * @return true once we have synced with a primary at least once
+	 */
+	public boolean isSynced() {
+		return this.lastHeard != 0;
+	}
+
+	/**
+	 * @return true once we have taken over from the primary
+	 */
+	public boolean hasTakenOver() {
+		return this.tookOver;
+	}
+
+	public void stop() {
+		this.isRunning = false;
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.util.Arrays;
+
+/**
+ * A MessageStore's own table of the prefixes and targets its lines mention, each kept once as UTF-8 with a count of the
+ * records using it. When the last of those goes the symbol goes too, so a nick that passed through once costs nothing
+ * after its lines are trimmed or compacted away.
+ *
+ * Only the store's appending thread changes the table. Readers on other threads only call get(), and only for ids of
+ * records they can see, which were published after the symbol was. A released id isn't handed out again until
+ * reclaim(), which the store only calls while no cursor is open, so a cursor never sees an id change under it.
+ */
+final class StoreSymbols {
+
+	// rough heap per symbol besides its bytes: array header and the slots in the tables below
+	private static final int SYMBOL_OVERHEAD = 40;
+
+	// id -> utf-8 bytes, replaced (never modified in place for a live id) when it has to grow
+	private volatile byte[][] symbols = new byte[8][];
+	private int[] refs = new int[8];
+	private int[] hashes = new int[8];
+	// the next id + 1 in the same bucket, 0 at the end
+	private int[] next = new int[8];
+	// first id + 1 in each bucket
+	private int[] buckets = new int[8];
+	// ids handed out so far, and how many of them are in use
+	private int count = 0;
+	private int live = 0;
+
+	// ids whose last record went, waiting for reclaim(), and ids ready to hand out again
+	private int[] released = new int[8];
+	private int releasedCount = 0;
+	private int[] free = new int[8];
+	private int freeCount = 0;
+
+	private volatile long bytes = 0;
+
+	/**
+	 * @return the id of the given bytes with one more reference, adding them if needed. The array is kept if it's new,
+	 * don't modify it afterwards
+	 */
+	int intern(byte[] s) {
+		int hash = Arrays.hashCode(s);
+		for (int id = this.buckets[hash & (this.buckets.length - 1)] - 1; id >= 0; id = this.next[id] - 1) {
+			if (this.hashes[id] == hash && Arrays.equals(this.symbols[id], s)) {
+				this.refs[id]++;
+				return id;
+			}
+		}
+
+		int id;
+		if (this.freeCount > 0) {
+			id = this.free[--this.freeCount];
+		} else {
+			id = this.count++;
+			if (id == this.refs.length) {
+				int grown = id * 2;
+				this.refs = Arrays.copyOf(this.refs, grown);
+				this.hashes = Arrays.copyOf(this.hashes, grown);
+				this.next = Arrays.copyOf(this.next, grown);
+				// publish the bigger table before any record using the new id
+				this.symbols = Arrays.copyOf(this.symbols, grown);
+			}
+		}
+
+		this.symbols[id] = s;
+		this.refs[id] = 1;
+		this.hashes[id] = hash;
+		this.link(id);
+		this.live++;
+		this.bytes += s.length + SYMBOL_OVERHEAD;
+
+		if (this.live > this.buckets.length) {
+			this.rehash(this.buckets.length * 2);
+		}
+		return id;
+	}
+
+	/**
+	 * Adds a reference to a symbol, for a record copied within the store
+	 */
+	void retain(int id) {
+		this.refs[id]++;
+	}
+
+	/**
+	 * Drops a reference to a symbol, for a record the store no longer holds. The id stays readable until reclaim()
+	 */
+	void release(int id) {
+		if (--this.refs[id] > 0) {
+			return;
+		}
+
+		int bucket = this.hashes[id] & (this.buckets.length - 1);
+		if (this.buckets[bucket] == id + 1) {
+			this.buckets[bucket] = this.next[id];
+		} else {
+			int prev = this.buckets[bucket] - 1;
+			while (this.next[prev] != id + 1) {
+				prev = this.next[prev] - 1;
+			}
+			this.next[prev] = this.next[id];
+		}
+		this.live--;
+
+		if (this.releasedCount == this.released.length) {
+			this.released = Arrays.copyOf(this.released, this.releasedCount * 2);
+		}
+		this.released[this.releasedCount++] = id;
+	}
+
+	/**
+	 * Frees the released symbols so their ids can be handed out again. Only call while nothing can be reading them
+	 */
+	void reclaim() {
+		if (this.releasedCount == 0) {
+			return;
+		}
+
+		long freed = 0;
+		if (this.freeCount + this.releasedCount > this.free.length) {
+			this.free = Arrays.copyOf(this.free, this.freeCount + this.releasedCount);
+		}
+		for (int i = 0; i < this.releasedCount; i++) {
+			int id = this.released[i];
+			freed += this.symbols[id].length + SYMBOL_OVERHEAD;
+			this.symbols[id] = null;
+			this.free[this.freeCount++] = id;
+		}
+		this.releasedCount = 0;
+		this.bytes -= freed;
+	}
+
+	/**
+	 * @return the UTF-8 bytes of a symbol. The array is shared, don't modify it
+	 */
+	byte[] get(int id) {
+		return this.symbols[id];
+	}
+
+	/**
+	 * @return a rough count of the heap the symbols take. Safe to call from any thread
+	 */
+	long sizeInBytes() {
+		return this.bytes;
+	}
+
+	private void link(int id) {
+		int bucket = this.hashes[id] & (this.buckets.length - 1);
+		this.next[id] = this.buckets[bucket];
+		this.buckets[bucket] = id + 1;
+	}
+
+	private void rehash(int size) {
+		this.buckets = new int[size];
+		for (int id = 0; id < this.count; id++) {
+			if (this.refs[id] > 0) {
+				this.link(id);
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A connection's work, run on the shared reader pool one run at a time. Scheduling it while it runs gets it one more run
+ * afterwards, so nothing scheduled is missed, and it never runs on two threads at once. That extra run goes to the back
+ * of the pool's queue, so a busy connection takes turns with everyone else instead of keeping a thread to itself.
+ */
+abstract class Strand implements Runnable {
+
+	private static final Logger log = Logger.getLogger("Shane");
+
+	private static final int IDLE = 0;
+	private static final int RUNNING = 1;
+	private static final int AGAIN = 2;
+
+	private final AtomicInteger state = new AtomicInteger(IDLE);
+
+	/**
+	 * Does whatever there is to do. Must not block, and should stop after a reasonable amount and schedule itself
+	 * again if there's more
+	 */
+	protected abstract void work();
+
+	void schedule() {
+		while (true) {
+			int s = this.state.get();
+			if (s == IDLE) {
+				if (this.state.compareAndSet(IDLE, RUNNING)) {
+					SharedResources.dispatch(this);
+					return;
+				}
+			} else if (s == RUNNING) {
+				if (this.state.compareAndSet(RUNNING, AGAIN)) {
+					return;
+				}
+			} else {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public final void run() {
+		try {
+			this.work();
+		} catch (RuntimeException e) {
+			log.log(Level.SEVERE, "Throwable in a connection's work", e);
+		}
+
+		if (!this.state.compareAndSet(RUNNING, IDLE)) {
+			this.state.set(RUNNING);
+			SharedResources.dispatch(this);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide table of IRC commands, so each one is kept once as UTF-8 and stored messages only carry its integer id.
+ *
+ * Ids are never reused and symbols are never freed, which is fine for commands since there are only so many of them.
+ * Prefixes and targets come and go with the people on the network, MessageStore keeps those per segment instead. The
+ * table stops growing at MAX_SYMBOLS in case a server makes commands up, and callers fall back to storing the raw text.
+ */
+public final class SymbolTable {
+
+	public static final int NONE = -1;
+	private static final int MAX_SYMBOLS = 1024;
+	// rough heap per symbol besides its bytes: map entry, key String and its array, boxed id, table slot
+	private static final int SYMBOL_OVERHEAD = 120;
+
+	private static final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	// id -> utf-8 bytes, replaced (never modified in place once published) when it has to grow
+	private static volatile byte[][] symbols = new byte[64][];
+	private static int count = 0;
+	private static long bytes = 0;
+
+	private SymbolTable() {
+	}
+
+	/**
+	 * @return the id of the given string, or NONE if it isn't a symbol
+	 */
+	public static int lookup(String s) {
+		Integer id = ids.get(s);
+		return (id == null ? NONE : id);
+	}
+
+	/**
+	 * @return the id of the given string, adding it if needed, or NONE if the table is full
+	 */
+	public static int intern(String s) {
+		Integer id = ids.get(s);
+		if (id != null) {
+			return id;
+		}
+
+		synchronized (SymbolTable.class) {
+			id = ids.get(s);
+			if (id != null) {
+				return id;
+			}
+			if (count >= MAX_SYMBOLS) {
+				return NONE;
+			}
+
+			byte[][] table = symbols;
+			if (count == table.length) {
+				table = Arrays.copyOf(table, table.length * 2);
+			}
+			table[count] = s.getBytes(StandardCharsets.UTF_8);
+			symbols = table;
+			bytes += table[count].length * 2 + SYMBOL_OVERHEAD;
+			// publish through the map only after the bytes are visible
+			ids.put(s, count);
+			return count++;
+		}
+	}
+
+	/**
+	 * @return the UTF-8 bytes of a symbol. The array is shared, don't modify it
+	 */
+	public static byte[] bytes(int id) {
+		return symbols[id];
+	}
+
+	public static String get(int id) {
+		return new String(symbols[id], StandardCharsets.UTF_8);
+	}
+
+	public static int size() {
+		return ids.size();
+	}
+
+	/**
+	 * @return a rough count of the heap the symbols take, to add to what the stores themselves take
+	 */
+	public static synchronized long sizeInBytes() {
+		return bytes;
+	}
+}
@@ -0,0 +1,429 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * A non-blocking socket registered with the {@link Reactor}, optionally wrapped in TLS, used for both sides of the bouncer.
+ * Reads return whatever is there without waiting. Writes go into a buffer that is flushed as far as the socket takes it,
+ * the rest goes out once the reactor says the socket has room again. Buffers only exist while they hold something,
+ * so an idle connection costs a few objects.
+ *
+ * Reads belong to one thread at a time (the owner's {@link Strand}), writes may come from anywhere.
+ */
+public class Transport implements ReadableByteChannel, Reactor.Listener {
+
+	// how long a blocking flush waits to hear from the reactor before checking the socket is still open
+	private static final long WAIT_MS = 100;
+	private static final int MIN_BUFFER = 1024;
+	private static final byte[] EMPTY = new byte[0];
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final Reactor.Listener owner;
+	private final SelectionKey key;
+
+	// bytes waiting to be written, null while there are none. Guarded by this
+	private byte[] out = null;
+	private int outLen = 0;
+	private long appended = 0;
+	// TLS records waiting for the socket and how many of our bytes they carry, guarded by this
+	private ByteBuffer netOut = null;
+	private int wrapped = 0;
+	// TLS bytes off the socket and what they decrypted to, only touched by the reading thread
+	private ByteBuffer netIn = null;
+	private ByteBuffer appIn = null;
+	private boolean inboundDone = false;
+
+	private volatile long bytesSent = 0;
+	// since when bytes have been waiting for the socket, 0 if none are
+	private volatile long waitingSince = 0;
+	// when the reactor last said there's something to read, 0 once taken
+	private volatile long readyAt = 0;
+	private final Object writable = new Object();
+	private boolean canWrite = false;
+
+	private final OutputStream stream = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			Transport.this.append(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			Transport.this.append(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			Transport.this.flush();
+		}
+	};
+
+	/**
+	 * Registers a connected channel with the reactor, nothing is read until {@link #watchRead()} is called
+	 * @param engine The TLS engine to wrap the connection in, its handshake already begun, or null for plain text
+	 * @param owner Told when the socket can be read or written, on the reactor thread
+	 */
+	public Transport(SocketChannel channel, SSLEngine engine, Reactor.Listener owner) throws IOException {
+		this.channel = channel;
+		this.engine = engine;
+		this.owner = owner;
+		this.key = Reactor.register(channel, this);
+	}
+
+	@Override
+	public void ready(int ops) {
+		if ((ops & SelectionKey.OP_READ) != 0) {
+			this.readyAt = System.nanoTime();
+		}
+		if ((ops & SelectionKey.OP_WRITE) != 0) {
+			synchronized (this.writable) {
+				this.canWrite = true;
+				this.writable.notifyAll();
+			}
+		}
+		this.owner.ready(ops);
+	}
+
+	/**
+	 * Asks the reactor to tell the owner once there's something to read
+	 */
+	public void watchRead() {
+		Reactor.watch(this.key, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * @return when the reactor last said there's something to read, 0 if it hasn't since the last call
+	 */
+	public long takeReadyAt() {
+		long at = this.readyAt;
+		this.readyAt = 0;
+		return at;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (this.engine == null) {
+			return this.channel.read(dst);
+		}
+
+		while (true) {
+			if (this.appIn != null && this.appIn.position() > 0) {
+				return this.takeDecrypted(dst);
+			}
+			if (this.inboundDone) {
+				return -1;
+			}
+			if (this.netIn != null && this.netIn.position() > 0 && this.unwrap()) {
+				continue;
+			}
+
+			if (this.netIn == null) {
+				this.netIn = ByteBuffer.allocate(this.engine.getSession().getPacketBufferSize());
+			} else if (!this.netIn.hasRemaining()) {
+				ByteBuffer grown = ByteBuffer.allocate(this.netIn.capacity() * 2);
+				this.netIn.flip();
+				this.netIn = grown.put(this.netIn);
+			}
+			int read = this.channel.read(this.netIn);
+			if (read < 0) {
+				this.inboundDone = true;
+				try {
+					this.engine.closeInbound();
+				} catch (SSLException e) {
+					// the peer hung up without a close_notify, that's its business
+				}
+			} else if (read == 0) {
+				if (this.netIn.position() == 0) {
+					this.netIn = null;
+				}
+				return 0;
+			}
+		}
+	}
+
+	private int takeDecrypted(ByteBuffer dst) {
+		this.appIn.flip();
+		int n = Math.min(dst.remaining(), this.appIn.remaining());
+		ByteBuffer part = this.appIn.duplicate();
+		part.limit(part.position() + n);
+		dst.put(part);
+		this.appIn.position(this.appIn.position() + n);
+		this.appIn.compact();
+		if (this.appIn.position() == 0) {
+			this.appIn = null;
+		}
+		return n;
+	}
+
+	/**
+	 * Decrypts what netIn holds into appIn, as far as it goes
+	 * @return false if nothing came of it and we need more bytes off the socket
+	 */
+	private boolean unwrap() throws IOException {
+		boolean progressed = false;
+		this.netIn.flip();
+		try {
+			while (true) {
+				if (this.appIn == null) {
+					this.appIn = ByteBuffer.allocate(this.engine.getSession().getApplicationBufferSize());
+				}
+				SSLEngineResult result = this.engine.unwrap(this.netIn, this.appIn);
+				switch (result.getStatus()) {
+					case BUFFER_OVERFLOW:
+						if (this.appIn.position() > 0) {
+							// hand out what we have first
+							return true;
+						}
+						this.appIn = ByteBuffer.allocate(Math.max(this.appIn.capacity() * 2, this.engine.getSession().getApplicationBufferSize()));
+						continue;
+					case BUFFER_UNDERFLOW:
+						return progressed;
+					case CLOSED:
+						this.inboundDone = true;
+						return true;
+					default:
+						break;
+				}
+				progressed |= (result.bytesConsumed() > 0 || result.bytesProduced() > 0);
+
+				HandshakeStatus status = result.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					this.runDelegatedTasks();
+					status = this.engine.getHandshakeStatus();
+				}
+				if (status == HandshakeStatus.NEED_WRAP || status == HandshakeStatus.FINISHED) {
+					// handshake records to send, or the handshake is done and anything we held back can go
+					this.tryFlush();
+				}
+
+				if (!this.netIn.hasRemaining() || (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+					return progressed;
+				}
+			}
+		} finally {
+			this.netIn.compact();
+			if (this.netIn.position() == 0) {
+				this.netIn = null;
+			}
+		}
+	}
+
+	private void runDelegatedTasks() {
+		Runnable task;
+		while ((task = this.engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Adds bytes to the end of the write buffer, call {@link #tryFlush()} or {@link #flush()} to send them
+	 * @return how many bytes have been appended so far, once {@link #getBytesSent()} reaches it these have been written
+	 */
+	public synchronized long append(byte[] b, int off, int len) {
+		if (this.out == null) {
+			this.out = new byte[Math.max(MIN_BUFFER, len)];
+		} else if (this.out.length - this.outLen < len) {
+			byte[] grown = new byte[Math.max(this.out.length * 2, this.outLen + len)];
+			System.arraycopy(this.out, 0, grown, 0, this.outLen);
+			this.out = grown;
+		}
+		System.arraycopy(b, off, this.out, this.outLen, len);
+		this.outLen += len;
+		this.appended += len;
+		return this.appended;
+	}
+
+	public long append(byte[] b) {
+		return this.append(b, 0, b.length);
+	}
+
+	/**
+	 * Writes as much as the socket takes right now. If some is left the reactor tells the owner once there's room
+	 * @return true if nothing is left to write
+	 */
+	public synchronized boolean tryFlush() throws IOException {
+		while (true) {
+			if (this.netOut != null) {
+				this.channel.write(this.netOut);
+				if (this.netOut.hasRemaining()) {
+					this.stuck();
+					return false;
+				}
+				this.netOut = null;
+				this.bytesSent += this.wrapped;
+				this.wrapped = 0;
+			}
+
+			if (this.engine == null) {
+				if (this.outLen > 0) {
+					int n = this.channel.write(ByteBuffer.wrap(this.out, 0, this.outLen));
+					this.consume(n);
+					this.bytesSent += n;
+					if (this.outLen > 0) {
+						this.stuck();
+						return false;
+					}
+				}
+				this.waitingSince = 0;
+				return true;
+			}
+
+			HandshakeStatus status = this.engine.getHandshakeStatus();
+			if (status == HandshakeStatus.NEED_TASK) {
+				this.runDelegatedTasks();
+				continue;
+			}
+			if (this.outLen == 0 && status != HandshakeStatus.NEED_WRAP) {
+				this.waitingSince = 0;
+				return true;
+			}
+
+			ByteBuffer records = ByteBuffer.allocate(this.engine.getSession().getPacketBufferSize());
+			SSLEngineResult result = this.engine.wrap(ByteBuffer.wrap(this.out == null ? EMPTY : this.out, 0, this.outLen), records);
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new SSLException("TLS connection closed");
+			}
+			if (result.getStatus() != SSLEngineResult.Status.OK) {
+				throw new SSLException("Unexpected TLS wrap result " + result.getStatus());
+			}
+			this.consume(result.bytesConsumed());
+			this.wrapped += result.bytesConsumed();
+
+			if (result.bytesProduced() > 0) {
+				records.flip();
+				this.netOut = records;
+			} else if (result.bytesConsumed() == 0) {
+				// mid-handshake and it's the peer's turn, reading its answer flushes us again
+				if (this.waitingSince == 0) {
+					this.waitingSince = System.nanoTime();
+				}
+				return false;
+			}
+		}
+	}
+
+	private void consume(int n) {
+		this.outLen -= n;
+		if (this.outLen == 0) {
+			this.out = null;
+		} else if (n > 0) {
+			System.arraycopy(this.out, n, this.out, 0, this.outLen);
+		}
+	}
+
+	private void stuck() {
+		if (this.waitingSince == 0) {
+			this.waitingSince = System.nanoTime();
+		}
+		Reactor.watch(this.key, SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Writes everything buffered, waiting for the socket as long as it takes. Only for worker threads, never the reader pool
+	 */
+	public void flush() throws IOException {
+		while (!this.tryFlush()) {
+			if (!this.channel.isOpen()) {
+				throw new ClosedChannelException();
+			}
+			synchronized (this.writable) {
+				try {
+					if (!this.canWrite) {
+						this.writable.wait(WAIT_MS);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while flushing");
+				}
+				this.canWrite = false;
+			}
+		}
+	}
+
+	/**
+	 * @return whether there's anything left to write, handshake records included
+	 */
+	public synchronized boolean needsFlush() {
+		return this.outLen > 0 || this.netOut != null || (this.engine != null && this.engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP);
+	}
+
+	/**
+	 * @return how many bytes are buffered and not yet written
+	 */
+	public synchronized int buffered() {
+		return this.outLen + (this.netOut != null ? this.netOut.remaining() : 0);
+	}
+
+	/**
+	 * @return a stream appending to the write buffer, whose flush() is {@link #flush()}
+	 */
+	public OutputStream getOutputStream() {
+		return this.stream;
+	}
+
+	/**
+	 * @return how many of our bytes the socket has taken so far
+	 */
+	public long getBytesSent() {
+		return this.bytesSent;
+	}
+
+	/**
+	 * @return System.nanoTime() since when bytes have been waiting for the socket, 0 if none are
+	 */
+	public long getWaitingSince() {
+		return this.waitingSince;
+	}
+
+	/**
+	 * @return the channel's socket, for addresses and options. Closing it closes the transport
+	 */
+	public Socket socket() {
+		return this.channel.socket();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.channel.isOpen();
+	}
+
+	@Override
+	public void close() {
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// ignored
+		}
+		synchronized (this.writable) {
+			this.writable.notifyAll();
+		}
+	}
+}
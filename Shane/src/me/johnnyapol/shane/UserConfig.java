@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A bouncer user: their credentials, afk message and the networks they are connected to.
+ * Networks without a "user=" line belong to the default user, which takes the global password and afk-msg.
+ */
+public class UserConfig {
+	public static final String DEFAULT_USER = "default";
+
+	private String name;
+	private String password;
+	private String afkMsg = "";
+	private Map<String, ServerConfig> networks = new LinkedHashMap<String, ServerConfig>();
+
+	private final static Logger log = Logger.getLogger("Shane");
+
+	public UserConfig(String name, String password, String afkMsg) {
+		this.name = name;
+		this.password = password;
+		this.afkMsg = afkMsg;
+	}
+
+	public UserConfig(String name, String[] lines) {
+		this.name = name;
+
+		for (String line : lines) {
+			line = line.trim();
+
+			if (!line.contains("=") && !line.startsWith("#")) {
+				log.warning("[config] invalid user config line: " + line);
+				continue;
+			}
+
+			String[] split = line.split("=", 2);
+			String key = split[0];
+
+			if (key.equalsIgnoreCase("password")) {
+				this.password = split[1];
+				continue;
+			}
+
+			if (key.equalsIgnoreCase("afk-msg")) {
+				this.afkMsg = split[1];
+				continue;
+			}
+
+			log.warning("[config] invalid user config line: " + line);
+			continue;
+		}
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getPassword() {
+		return this.password;
+	}
+
+	public String getAfkMsg() {
+		return this.afkMsg;
+	}
+
+	public void setAfkMsg(String afkMsg) {
+		this.afkMsg = afkMsg;
+	}
+
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	/**
+	 * @return the networks this user is connected to, keyed by network name
+	 */
+	public Map<String, ServerConfig> getNetworks() {
+		return this.networks;
+	}
+
+	public void addNetwork(String name, ServerConfig cfg) {
+		this.networks.put(name, cfg);
+	}
+}
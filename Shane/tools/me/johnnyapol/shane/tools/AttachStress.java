@@ -0,0 +1,482 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import me.johnnyapol.shane.ConnectionLimiter;
+import me.johnnyapol.shane.IRCConnection;
+import me.johnnyapol.shane.IRCServer;
+import me.johnnyapol.shane.ServerConfig;
+import me.johnnyapol.shane.SharedResources;
+import me.johnnyapol.shane.UserConfig;
+
+/**
+ * Checks that attaching and detaching clients never loses or repeats a line. An ircd floods numbered lines
+ * ("msg 1", "msg 2", ...) at the bouncer while every profile's client keeps attaching and going away again: with a QUIT,
+ * by hanging up without one, or by not reading for a while, which on the port that drops slow clients gets it dropped as
+ * too slow, or for falling too far behind if it stops reading while its backlog is replayed. Across all of a profile's
+ * sessions, backlog replays included, the numbers have to come out exactly once and in order.
+ *
+ *   java -cp bin me.johnnyapol.shane.tools.AttachStress [seconds] [lines per second, 0 for as fast as it goes]
+ *
+ * Exits with 1 if any profile saw a gap or a repeat.
+ */
+public class AttachStress {
+
+	// held so the level we set isn't lost when the logger is collected
+	private static final Logger log = Logger.getLogger("Shane");
+
+	private static final String[] PROFILES = { "laptop", "phone" };
+	// how long a stalling client stops reading, long enough to get dropped for being slow or, at full speed, too far behind
+	// during a replay
+	private static final long STALL_MS = 3000;
+	private static final int TICK_MS = 500;
+	// how close to the network's latest line a client has to be to count as done replaying
+	private static final int LIVE_LINES = 10000;
+
+	// a write that fails part way may have got some whole lines through, which the bouncer can't know about, so a dropped
+	// client may see up to one write's worth again. The bouncer writes to clients through a 1KB buffer
+	private static final int MAX_RESENT_BYTES = 1024;
+
+	private static volatile boolean flooding = true;
+
+	public static void main(String[] args) throws Exception {
+		int seconds = (args.length > 0 ? Integer.parseInt(args[0]) : 30);
+		int rate = (args.length > 1 ? Integer.parseInt(args[1]) : 0);
+		log.setLevel(Level.WARNING);
+
+		FloodIrcd ircd = new FloodIrcd(rate);
+		SharedResources.newThread(ircd, "FloodIrcd").start();
+
+		// one port drops slow clients, the other waits for them
+		List<Profile> profiles = new ArrayList<Profile>();
+		int[] ports = { freePort(), freePort() };
+		for (int i = 0; i < ports.length; i++) {
+			IRCServer server = new IRCServer(ports[i], false, new ConnectionLimiter(100000, 5, 10, 100, 100));
+			if (i == 0) {
+				server.setSlowClientPolicy(1000, true);
+			}
+			String name = (i == 0 ? "drop" : "wait");
+			UserConfig user = new UserConfig(name, "pw", "away");
+			ServerConfig cfg = new ServerConfig("127.0.0.1", ircd.getPort(), ports[i], name, new String[] { "#stress" });
+			user.addNetwork("net", cfg);
+			IRCConnection connection = new IRCConnection(user, "net", cfg, server);
+			server.addIRCConnection(connection);
+			SharedResources.newThread(server, "IRCServer-" + ports[i]).start();
+			connection.start();
+			for (String nick : PROFILES) {
+				profiles.add(new Profile(name, nick, ports[i], ircd, new Random(31 * i + nick.hashCode())));
+			}
+		}
+
+		final CountDownLatch done = new CountDownLatch(profiles.size());
+		for (final Profile profile : profiles) {
+			SharedResources.newThread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						profile.run();
+					} catch (Exception e) {
+						profile.fail("client failed: " + e);
+					} finally {
+						profile.finished = true;
+						done.countDown();
+					}
+				}
+			}, "Stress-" + profile.user + "-" + profile.nick).start();
+		}
+
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		flooding = false;
+		// once the flood threads are done, the profiles catch up with what was sent and stop
+		ircd.awaitFloods();
+		for (Profile profile : profiles) {
+			profile.last = ircd.sent(profile.user);
+		}
+		if (!done.await(60, TimeUnit.SECONDS)) {
+			for (Profile profile : profiles) {
+				if (!profile.finished) {
+					profile.fail("didn't catch up within a minute");
+				}
+			}
+		}
+
+		PrintStream out = System.out;
+		boolean ok = true;
+		for (Profile profile : profiles) {
+			out.println(profile.report());
+			ok &= profile.errors.isEmpty();
+		}
+		out.println(ok ? "OK" : "FAILED");
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket s = new ServerSocket(0);
+		try {
+			return s.getLocalPort();
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * One profile's sessions, one at a time, and the numbers it has seen so far
+	 */
+	private static final class Profile {
+		final String user, nick;
+		final int port;
+		final FloodIrcd ircd;
+		final Random random;
+		// the last number sent to the network, set once the flood has stopped
+		volatile long last = -1;
+		volatile boolean finished = false;
+
+		long next = -1;
+		long lines = 0;
+		int sessions = 0, quits = 0, hangups = 0, dropped = 0, stayed = 0;
+		// lines seen again after being dropped, and their bytes since the drop
+		long resent = 0;
+		boolean afterDrop = false;
+		int resentBytes = 0;
+		final List<String> errors = new ArrayList<String>();
+
+		Profile(String user, String nick, int port, FloodIrcd ircd, Random random) {
+			this.user = user;
+			this.nick = nick;
+			this.port = port;
+			this.ircd = ircd;
+			this.random = random;
+		}
+
+		void run() throws Exception {
+			while (this.last < 0 || this.next <= this.last) {
+				this.session(this.last >= 0);
+				// offline for a bit, so there's a backlog to replay
+				Thread.sleep(this.random.nextInt(300));
+			}
+		}
+
+		private void session(boolean catchUp) throws IOException, InterruptedException {
+			this.sessions++;
+			Socket s = new Socket();
+			// a small buffer so a client that stops reading backs up into the bouncer quickly
+			s.setReceiveBufferSize(16 * 1024);
+			s.connect(new InetSocketAddress("127.0.0.1", this.port));
+			OutputStream out = s.getOutputStream();
+			out.write(("NICK " + this.nick + "\r\nPASS " + this.user + ":pw\r\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			Lines in = new Lines(s.getInputStream());
+			// wakes us up to leave even when nothing is coming in
+			s.setSoTimeout(TICK_MS);
+
+			int mode = (catchUp ? 0 : this.random.nextInt(4));
+			long leaveAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.random.nextInt(1000));
+			boolean left = false;
+			String line;
+			try {
+				if (mode == 3) {
+					// not reading from the start holds up the replay, while the lines from the network pile up behind it
+					left = true;
+					if (this.stall(s, in)) {
+						this.dropped++;
+						this.afterDrop = true;
+						return;
+					}
+					// hanging up rather than sending a QUIT, if the bouncer drops us before reading it, the unread QUIT turns the close into a reset
+					this.stayed++;
+					s.shutdownOutput();
+				}
+				while (true) {
+					try {
+						line = in.next();
+					} catch (SocketTimeoutException e) {
+						line = "";
+					}
+					if (line == null) {
+						break;
+					}
+					this.count(line);
+					if (left) {
+						continue;
+					}
+					if (catchUp ? this.next > this.last : System.nanoTime() > leaveAt) {
+						if (mode == 0 && !catchUp && this.next < this.ircd.sent(this.user) - LIVE_LINES) {
+							// a QUIT waits unread behind the replay, and if the replay ends in the bouncer dropping us, the
+							// close turns into a reset that takes what we haven't read yet with it, so hang up instead
+							mode = 1;
+						}
+						left = true;
+						if (mode == 0) {
+							this.quits++;
+							out.write("QUIT\r\n".getBytes(StandardCharsets.UTF_8));
+							out.flush();
+						} else if (mode == 1) {
+							this.hangups++;
+							s.shutdownOutput();
+						} else if (this.stall(s, in)) {
+							this.dropped++;
+							this.afterDrop = true;
+							break;
+						} else {
+							this.stayed++;
+							s.shutdownOutput();
+						}
+					}
+				}
+			} finally {
+				s.close();
+			}
+		}
+
+		/**
+		 * Stops reading for a while, then reads what the bouncer managed to send before it gave up on us
+		 * @return true if it did give up on us, false if we're still attached
+		 */
+		private boolean stall(Socket s, Lines in) throws IOException, InterruptedException {
+			Thread.sleep(STALL_MS);
+			s.setSoTimeout(3000);
+			long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+			try {
+				String line;
+				while ((line = in.next()) != null) {
+					this.count(line);
+					if (System.nanoTime() > until) {
+						return false;
+					}
+				}
+				return true;
+			} catch (SocketTimeoutException e) {
+				// quiet but not closed, we weren't dropped
+				return false;
+			} finally {
+				s.setSoTimeout(TICK_MS);
+			}
+		}
+
+		private void count(String line) {
+			int at = line.lastIndexOf(" :msg ");
+			if (at < 0) {
+				return;
+			}
+			long n = Long.parseLong(line.substring(at + 6).trim());
+			this.lines++;
+			if (this.next < 0) {
+				// the profile only starts buffering once it has attached
+				this.next = n;
+			}
+			if (n < this.next && this.afterDrop && (this.resentBytes += line.length() + 2) <= MAX_RESENT_BYTES) {
+				// the tail of the write the bouncer was in when it dropped us
+				this.resent++;
+				return;
+			}
+			this.afterDrop = false;
+			this.resentBytes = 0;
+			if (n != this.next) {
+				this.fail((n > this.next ? "gap" : "repeat") + ": expected msg " + this.next + ", got msg " + n + " in session " + this.sessions);
+			}
+			this.next = Math.max(this.next, n + 1);
+		}
+
+		synchronized void fail(String error) {
+			if (this.errors.size() < 20) {
+				this.errors.add(error);
+			}
+		}
+
+		synchronized String report() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%-8s %-6s %5d sessions (%d quit, %d hung up, %d dropped by the bouncer, %d stalled and stayed), %9d lines (%d resent after a drop), up to msg %d of %d",
+					this.user, this.nick, this.sessions, this.quits, this.hangups, this.dropped, this.stayed, this.lines, this.resent, this.next - 1, this.last));
+			for (String error : this.errors) {
+				sb.append(System.lineSeparator()).append("    ").append(error);
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * CRLF terminated lines off a socket. A line the connection ended in the middle of is dropped, the bouncer sends it again
+	 */
+	private static final class Lines {
+		private final InputStream in;
+		private final byte[] buf = new byte[8192];
+		private int pos = 0, end = 0;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		Lines(InputStream in) {
+			this.in = in;
+		}
+
+		String next() throws IOException {
+			while (true) {
+				for (int i = this.pos; i < this.end; i++) {
+					if (this.buf[i] == '\n') {
+						this.line.write(this.buf, this.pos, i - this.pos);
+						this.pos = i + 1;
+						String s = new String(this.line.toByteArray(), StandardCharsets.UTF_8).trim();
+						this.line.reset();
+						return s;
+					}
+				}
+				this.line.write(this.buf, this.pos, this.end - this.pos);
+				int read = this.in.read(this.buf);
+				if (read < 0) {
+					return null;
+				}
+				this.pos = 0;
+				this.end = read;
+			}
+		}
+	}
+
+	/**
+	 * Registers whoever connects, and floods each of them with numbered lines once they've joined a channel
+	 */
+	private static final class FloodIrcd implements Runnable {
+		private final ServerSocket socket;
+		private final int rate;
+		// nick -> the last number sent to it
+		private final Map<String, Long> sent = new ConcurrentHashMap<String, Long>();
+		private final List<Thread> floods = new CopyOnWriteArrayList<Thread>();
+
+		FloodIrcd(int rate) throws IOException {
+			this.socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			this.rate = rate;
+		}
+
+		int getPort() {
+			return this.socket.getLocalPort();
+		}
+
+		void awaitFloods() throws InterruptedException {
+			for (Thread flood : this.floods) {
+				flood.join();
+			}
+		}
+
+		long sent(String nick) {
+			Long n = this.sent.get(nick);
+			return (n == null ? 0 : n);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					final Socket s = this.socket.accept();
+					SharedResources.newThread(new Runnable() {
+						@Override
+						public void run() {
+							FloodIrcd.this.serve(s);
+						}
+					}, "FloodIrcd-" + s.getPort()).start();
+				} catch (IOException e) {
+					return;
+				}
+			}
+		}
+
+		private void serve(Socket s) {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+				final OutputStream out = new BufferedOutputStream(s.getOutputStream(), 16 * 1024);
+				String nick = null;
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("NICK ") && nick == null) {
+						nick = line.substring(5).trim();
+						write(out, ":srv 001 " + nick + " :welcome");
+					} else if (line.startsWith("JOIN ")) {
+						write(out, ":" + nick + "!u@h " + line);
+						final String flooded = nick;
+						Thread flood = SharedResources.newThread(new Runnable() {
+							@Override
+							public void run() {
+								FloodIrcd.this.flood(flooded, out);
+							}
+						}, "Flood-" + nick);
+						this.floods.add(flood);
+						flood.start();
+					} else if (line.startsWith("PING ")) {
+						write(out, ":srv PONG srv " + line.substring(5));
+					}
+				}
+			} catch (IOException e) {
+				// the bouncer went away
+			}
+		}
+
+		private void flood(String nick, OutputStream out) {
+			long n = 0;
+			long began = System.nanoTime();
+			try {
+				while (flooding) {
+					n++;
+					synchronized (out) {
+						out.write((":src!u@h PRIVMSG #stress :msg " + n + "\r\n").getBytes(StandardCharsets.UTF_8));
+						if (this.rate > 0 || n % 64 == 0) {
+							out.flush();
+						}
+					}
+					this.sent.put(nick, n);
+					if (this.rate > 0) {
+						long due = began + n * TimeUnit.SECONDS.toNanos(1) / this.rate;
+						long wait = due - System.nanoTime();
+						if (wait > 0) {
+							Thread.sleep(TimeUnit.NANOSECONDS.toMillis(wait), (int) (wait % 1000000));
+						}
+					}
+				}
+				synchronized (out) {
+					out.flush();
+				}
+			} catch (Exception e) {
+				log.log(Level.SEVERE, "flood to " + nick + " stopped", e);
+			}
+		}
+
+		private static void write(OutputStream out, String line) throws IOException {
+			synchronized (out) {
+				out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+				out.flush();
+			}
+		}
+	}
+}
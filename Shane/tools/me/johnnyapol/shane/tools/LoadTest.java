@@ -0,0 +1,312 @@
+/**
+ * Copyright (c) 2018 John Christopher Allwein (johnnyapol)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package me.johnnyapol.shane.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.ObjectName;
+
+import me.johnnyapol.shane.ConnectionLimiter;
+import me.johnnyapol.shane.IRCConnection;
+import me.johnnyapol.shane.IRCServer;
+import me.johnnyapol.shane.ServerConfig;
+import me.johnnyapol.shane.SharedResources;
+import me.johnnyapol.shane.UserConfig;
+
+/**
+ * Measures what an idle session costs. Starts N users, each with one network and one attached client, and reports
+ * the heap and native memory per session. Exits with status 1 if a session costs more than the capacity target in
+ * the README, or if the bouncer's thread count grew with the number of sessions.
+ *
+ * The ircd and the clients run in a second JVM (this class with --peer), so only the bouncer is measured here.
+ * Run it with native memory tracking on to get the native numbers:
+ *
+ *   java -Xmx256m -XX:NativeMemoryTracking=summary -cp bin me.johnnyapol.shane.tools.LoadTest 1000
+ */
+public class LoadTest {
+
+	// held so the level we set isn't lost when the logger is collected
+	private static final Logger log = Logger.getLogger("Shane");
+
+	// the README's capacity target for an idle session (one network and one attached client)
+	private static final double TARGET_HEAP_KB = 24;
+	private static final double TARGET_NATIVE_KB = 16;
+	// the reactor, the reader pool, the port thread and a few slow-starting workers, however many sessions there are
+	private static final int TARGET_THREADS = SharedResources.READERS + 4;
+
+	private static final Pattern NMT_TOTAL = Pattern.compile("Total: reserved=(\\d+)KB, committed=(\\d+)KB");
+	private static final Pattern NMT_THREAD = Pattern.compile("- +Thread \\(reserved=(\\d+)KB, committed=(\\d+)KB\\)");
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("--peer")) {
+			peer(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+			return;
+		}
+
+		int sessions = (args.length > 0 ? Integer.parseInt(args[0]) : 500);
+		log.setLevel(Level.WARNING);
+
+		int ircdPort = freePort();
+		int bouncerPort = freePort();
+
+		Sample baseline = Sample.take();
+
+		IRCServer server = new IRCServer(bouncerPort, false, new ConnectionLimiter(sessions * 2, 5, 10, sessions * 2, sessions * 2));
+		List<IRCConnection> connections = new ArrayList<IRCConnection>();
+		for (int i = 0; i < sessions; i++) {
+			UserConfig user = new UserConfig("load" + i, "pw" + i, "away");
+			ServerConfig cfg = new ServerConfig("127.0.0.1", ircdPort, bouncerPort, "load" + i, new String[] { "#load" });
+			user.addNetwork("net", cfg);
+			IRCConnection connection = new IRCConnection(user, "net", cfg, server);
+			server.addIRCConnection(connection);
+			connections.add(connection);
+		}
+
+		Process peer = new ProcessBuilder(System.getProperty("java.home") + "/bin/java", "-cp", System.getProperty("java.class.path"),
+				LoadTest.class.getName(), "--peer", String.valueOf(ircdPort), String.valueOf(bouncerPort), String.valueOf(sessions))
+				.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		BufferedReader fromPeer = new BufferedReader(new InputStreamReader(peer.getInputStream(), StandardCharsets.UTF_8));
+		expect(fromPeer, "listening");
+
+		SharedResources.newThread(server, "IRCServer-" + bouncerPort).start();
+		for (IRCConnection connection : connections) {
+			connection.start();
+		}
+		expect(fromPeer, "upstreams");
+		awaitIdleWorkers();
+		Sample upstreams = Sample.take();
+
+		peer.getOutputStream().write("clients\n".getBytes(StandardCharsets.UTF_8));
+		peer.getOutputStream().flush();
+		expect(fromPeer, "clients");
+		// the last clients may still be replaying
+		Thread.sleep(2000);
+		awaitIdleWorkers();
+		Sample clients = Sample.take();
+
+		PrintStream out = System.out;
+		int threads = SharedResources.getLiveThreads();
+		out.println(sessions + " sessions, " + server.getNumConnectedClients() + " clients attached, " + threads + " bouncer threads");
+		report(out, "per network", baseline, upstreams, sessions);
+		report(out, "per client", upstreams, clients, sessions);
+		report(out, "per session", baseline, clients, sessions);
+
+		List<String> exceeded = new ArrayList<String>();
+		double heapKB = (clients.heap - baseline.heap) / 1024.0 / sessions;
+		if (heapKB > TARGET_HEAP_KB) {
+			exceeded.add(String.format("heap %.1fKB > %.0fKB per session", heapKB, TARGET_HEAP_KB));
+		}
+		if (clients.nativeCommitted >= 0) {
+			double nativeKB = (clients.nativeCommitted - baseline.nativeCommitted) / (double) sessions;
+			if (nativeKB > TARGET_NATIVE_KB) {
+				exceeded.add(String.format("native committed %.1fKB > %.0fKB per session", nativeKB, TARGET_NATIVE_KB));
+			}
+		}
+		if (threads > TARGET_THREADS) {
+			exceeded.add(threads + " threads > " + TARGET_THREADS);
+		}
+		if (server.getNumConnectedClients() < sessions) {
+			exceeded.add("only " + server.getNumConnectedClients() + " of " + sessions + " clients attached");
+		}
+		out.println(exceeded.isEmpty() ? "OK, within the capacity target" : "FAILED, over the capacity target: " + exceeded);
+
+		// exiting straight away, stopping a thousand networks one by one only adds log noise
+		peer.destroy();
+		System.exit(exceeded.isEmpty() ? 0 : 1);
+	}
+
+	private static void report(PrintStream out, String what, Sample before, Sample after, int count) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-12s heap %6.1fKB", what, (after.heap - before.heap) / 1024.0 / count));
+		if (after.nativeCommitted >= 0) {
+			sb.append(String.format(", native committed %6.1fKB (thread stacks %6.1fKB), native reserved %6.1fKB",
+					(after.nativeCommitted - before.nativeCommitted) / (double) count, (after.threadCommitted - before.threadCommitted) / (double) count,
+					(after.nativeReserved - before.nativeReserved) / (double) count));
+		} else {
+			sb.append(", native n/a (run with -XX:NativeMemoryTracking=summary)");
+		}
+		out.println(sb);
+	}
+
+	/**
+	 * Connecting and replaying run on the worker pool, whose idle threads take a while to go away. They aren't part of
+	 * what an idle session costs, so wait for them
+	 */
+	private static void awaitIdleWorkers() throws InterruptedException {
+		int last = -1;
+		for (int i = 0; i < 30; i++) {
+			int live = SharedResources.getLiveThreads();
+			if (live == last && live <= TARGET_THREADS) {
+				return;
+			}
+			last = live;
+			Thread.sleep(1000);
+		}
+	}
+
+	private static void expect(BufferedReader in, String word) throws IOException {
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith(word)) {
+				return;
+			}
+		}
+		throw new IOException("peer exited before saying " + word);
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket s = new ServerSocket(0);
+		try {
+			return s.getLocalPort();
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Live heap after a full collection, and NMT's committed/reserved totals in KB (-1 if tracking is off)
+	 */
+	private static final class Sample {
+		long heap;
+		long nativeCommitted = -1, nativeReserved = -1, threadCommitted = -1;
+
+		static Sample take() throws Exception {
+			Sample s = new Sample();
+			for (int i = 0; i < 3; i++) {
+				System.gc();
+				Thread.sleep(200);
+			}
+			s.heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+			String nmt;
+			try {
+				nmt = (String) ManagementFactory.getPlatformMBeanServer().invoke(new ObjectName("com.sun.management:type=DiagnosticCommand"), "vmNativeMemory",
+						new Object[] { new String[] { "summary" } }, new String[] { String[].class.getName() });
+			} catch (Exception e) {
+				return s;
+			}
+			Matcher total = NMT_TOTAL.matcher(nmt);
+			Matcher thread = NMT_THREAD.matcher(nmt);
+			if (total.find() && thread.find()) {
+				s.nativeReserved = Long.parseLong(total.group(1));
+				s.nativeCommitted = Long.parseLong(total.group(2));
+				s.threadCommitted = Long.parseLong(thread.group(2));
+			}
+			return s;
+		}
+	}
+
+	/**
+	 * The other side: a single threaded ircd that welcomes every connection, and once told to, one client per user
+	 */
+	private static void peer(int ircdPort, int bouncerPort, int sessions) throws IOException {
+		final PrintStream out = System.out;
+		Selector selector = Selector.open();
+		ServerSocketChannel ircd = ServerSocketChannel.open();
+		ircd.bind(new InetSocketAddress("127.0.0.1", ircdPort), sessions);
+		ircd.configureBlocking(false);
+		ircd.register(selector, SelectionKey.OP_ACCEPT);
+		out.println("listening");
+		out.flush();
+
+		BufferedReader control = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		ByteBuffer buf = ByteBuffer.allocate(8192);
+		int joined = 0, authenticated = 0;
+		boolean clientsStarted = false;
+
+		while (true) {
+			selector.select(100);
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isAcceptable()) {
+					SocketChannel c = ircd.accept();
+					c.configureBlocking(false);
+					c.register(selector, SelectionKey.OP_READ, new Peer(false));
+					continue;
+				}
+				SocketChannel c = (SocketChannel) key.channel();
+				Peer p = (Peer) key.attachment();
+				buf.clear();
+				if (c.read(buf) < 0) {
+					key.cancel();
+					c.close();
+					continue;
+				}
+				p.text.append(new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8));
+				int nl;
+				while ((nl = p.text.indexOf("\n")) >= 0) {
+					String line = p.text.substring(0, nl).trim();
+					p.text.delete(0, nl + 1);
+					if (p.client) {
+						if (line.contains("Thanks for authenticating") && ++authenticated == sessions) {
+							out.println("clients");
+							out.flush();
+						}
+					} else if (line.startsWith("NICK ")) {
+						p.nick = line.substring(5);
+						c.write(ByteBuffer.wrap((":srv 001 " + p.nick + " :welcome\r\n").getBytes(StandardCharsets.UTF_8)));
+					} else if (line.startsWith("JOIN ")) {
+						c.write(ByteBuffer.wrap((":" + p.nick + "!u@h " + line + "\r\n").getBytes(StandardCharsets.UTF_8)));
+						if (++joined == sessions) {
+							out.println("upstreams");
+							out.flush();
+						}
+					}
+				}
+			}
+
+			if (!clientsStarted && joined >= sessions && control.ready() && control.readLine().equals("clients")) {
+				clientsStarted = true;
+				for (int i = 0; i < sessions; i++) {
+					SocketChannel c = SocketChannel.open(new InetSocketAddress("127.0.0.1", bouncerPort));
+					c.write(ByteBuffer.wrap(("NICK laptop\r\nPASS load" + i + ":pw" + i + "\r\n").getBytes(StandardCharsets.UTF_8)));
+					c.configureBlocking(false);
+					c.register(selector, SelectionKey.OP_READ, new Peer(true));
+				}
+			}
+		}
+	}
+
+	private static final class Peer {
+		final boolean client;
+		final StringBuilder text = new StringBuilder();
+		String nick = "";
+
+		Peer(boolean client) {
+			this.client = client;
+		}
+	}
+}